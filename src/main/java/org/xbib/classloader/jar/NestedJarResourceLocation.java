@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.classloader.jar;
+
+import org.xbib.classloader.AbstractResourceHandle;
+import org.xbib.classloader.AbstractURLResourceLocation;
+import org.xbib.classloader.ResourceHandle;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.jar.Manifest;
+
+/**
+ * A jar inside a zip archive, for example a jar in the lib folder of a plugin bundle.
+ *
+ * The archive is memory-mapped. If the jar is stored without compression, its classes and resources
+ * are read directly by their offset in the archive. A compressed jar is inflated once into a temporary file,
+ * which is mapped and deleted at once, not into the heap. Signatures of the jar are not verified, and resource URLs can only be
+ * opened as they are returned, not after parsing them from a string.
+ */
+public class NestedJarResourceLocation extends AbstractURLResourceLocation {
+
+    private final ZipDirectory jar;
+
+    private final URLStreamHandler handler = new NestedJarUrlStreamHandler();
+
+    private Manifest manifest;
+
+    private boolean manifestLoaded;
+
+    /**
+     * @param codeSource the code source, in the form {@code jar:file:/path/bundle.zip!/lib/library.jar}
+     * @param archive the zip archive
+     * @param entryName the name of the jar in the archive
+     * @throws IOException if the archive or the jar can not be read
+     */
+    public NestedJarResourceLocation(URL codeSource, File archive, String entryName) throws IOException {
+        this(codeSource, ZipDirectory.map(archive), entryName);
+    }
+
+    /**
+     * @param codeSource the code source, in the form {@code jar:file:/path/bundle.zip!/lib/library.jar}
+     * @param outer the directory of the zip archive, which may be shared with other jars of the archive
+     * @param entryName the name of the jar in the archive
+     * @throws IOException if the jar can not be read
+     */
+    public NestedJarResourceLocation(URL codeSource, ZipDirectory outer, String entryName) throws IOException {
+        super(codeSource);
+        ZipDirectory.Entry entry = outer.getEntry(entryName);
+        if (entry == null) {
+            throw new FileNotFoundException(entryName + " not found in " + codeSource);
+        }
+        if (entry.isStored()) {
+            this.jar = ZipDirectory.read(outer.getData(entry));
+        } else {
+            this.jar = inflate(outer, entry);
+        }
+    }
+
+    private static ZipDirectory inflate(ZipDirectory outer, ZipDirectory.Entry entry) throws IOException {
+        File file = File.createTempFile("nested-", ".jar");
+        try {
+            try (InputStream in = outer.getInputStream(entry)) {
+                Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return ZipDirectory.map(file);
+        } finally {
+            // the mapping stays valid after the file is deleted, where the file system allows that
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    public ResourceHandle getResourceHandle(String resourceName) {
+        ZipDirectory.Entry entry = jar.getEntry(resourceName);
+        if (entry == null) {
+            // directories may be given without trailing slash
+            entry = jar.getEntry(resourceName + "/");
+        }
+        return entry != null ? new NestedJarResourceHandle(entry) : null;
+    }
+
+    public synchronized Manifest getManifest() throws IOException {
+        if (!manifestLoaded) {
+            ZipDirectory.Entry entry = jar.getEntry("META-INF/MANIFEST.MF");
+            if (entry != null) {
+                try (InputStream in = jar.getInputStream(entry)) {
+                    manifest = new Manifest(in);
+                }
+            }
+            manifestLoaded = true;
+        }
+        return manifest;
+    }
+
+    private class NestedJarResourceHandle extends AbstractResourceHandle {
+
+        private final ZipDirectory.Entry entry;
+
+        NestedJarResourceHandle(ZipDirectory.Entry entry) {
+            this.entry = entry;
+        }
+
+        public String getName() {
+            return entry.getName();
+        }
+
+        public URL getUrl() {
+            try {
+                return new URL("jar", "", -1, getCodeSource().getFile() + "!/" + entry.getName(), handler);
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public boolean isDirectory() {
+            return entry.isDirectory();
+        }
+
+        public URL getCodeSourceUrl() {
+            return getCodeSource();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return jar.getInputStream(entry);
+        }
+
+        public int getContentLength() {
+            return (int) entry.getSize();
+        }
+
+        @Override
+        public Manifest getManifest() throws IOException {
+            return NestedJarResourceLocation.this.getManifest();
+        }
+    }
+
+    private class NestedJarUrlStreamHandler extends URLStreamHandler {
+
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            String file = url.getFile();
+            String prefix = getCodeSource().getFile() + "!/";
+            if (!file.startsWith(prefix)) {
+                // not within this jar, let the system handler deal with this
+                return new URL(url.toExternalForm()).openConnection();
+            }
+            final ZipDirectory.Entry entry = jar.getEntry(file.substring(prefix.length()));
+            if (entry == null) {
+                throw new FileNotFoundException("Entry not found: " + url);
+            }
+            return new URLConnection(url) {
+                @Override
+                public void connect() {
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return jar.getInputStream(entry);
+                }
+
+                @Override
+                public long getContentLengthLong() {
+                    return entry.getSize();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.classloader.jar;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * The central directory of a zip archive held in a byte buffer, for example a memory-mapped file
+ * or a stored entry of another archive. Entries are read by their offset in the buffer, without copying
+ * them to the heap. Zip64 archives are not supported, they are rejected with a {@link ZipException}.
+ *
+ * A directory can be read by several threads, so the nested jars of an archive can share the directory
+ * of the archive.
+ */
+public class ZipDirectory {
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    private static final int END_SIZE = 22;
+
+    private final ByteBuffer buffer;
+
+    private final Map<String, Entry> entries;
+
+    private ZipDirectory(ByteBuffer buffer, Map<String, Entry> entries) {
+        this.buffer = buffer;
+        this.entries = entries;
+    }
+
+    /**
+     * Map a zip archive and read its central directory.
+     *
+     * @param archive the zip archive
+     * @return the directory of the archive
+     * @throws IOException if the archive can not be read
+     */
+    public static ZipDirectory map(File archive) throws IOException {
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    static ZipDirectory read(ByteBuffer buffer) throws IOException {
+        ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int end = -1;
+        // the end record is followed by a comment of at most 65535 bytes
+        for (int pos = b.limit() - END_SIZE; pos >= Math.max(0, b.limit() - END_SIZE - 0xffff); pos--) {
+            if (b.getInt(pos) == END_SIGNATURE) {
+                end = pos;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("end of central directory not found");
+        }
+        int count = b.getShort(end + 10) & 0xffff;
+        long offset = b.getInt(end + 16) & 0xffffffffL;
+        if (count == 0xffff || offset == 0xffffffffL ||
+                (end >= ZIP64_LOCATOR_SIZE && b.getInt(end - ZIP64_LOCATOR_SIZE) == ZIP64_LOCATOR_SIGNATURE)) {
+            throw new ZipException("zip64 archives are not supported");
+        }
+        Map<String, Entry> entries = new LinkedHashMap<>(count * 2);
+        int pos = (int) offset;
+        for (int i = 0; i < count; i++) {
+            if (b.getInt(pos) != CENTRAL_SIGNATURE) {
+                throw new ZipException("invalid central directory header at " + pos);
+            }
+            int nameLength = b.getShort(pos + 28) & 0xffff;
+            int extraLength = b.getShort(pos + 30) & 0xffff;
+            int commentLength = b.getShort(pos + 32) & 0xffff;
+            byte[] name = new byte[nameLength];
+            ByteBuffer n = b.duplicate();
+            n.position(pos + 46);
+            n.get(name);
+            Entry entry = new Entry(new String(name, StandardCharsets.UTF_8),
+                    b.getShort(pos + 10) & 0xffff,
+                    b.getInt(pos + 20) & 0xffffffffL,
+                    b.getInt(pos + 24) & 0xffffffffL,
+                    b.getInt(pos + 42) & 0xffffffffL);
+            if (entry.compressedSize == 0xffffffffL || entry.size == 0xffffffffL ||
+                    entry.localHeaderOffset == 0xffffffffL) {
+                throw new ZipException("zip64 entry " + entry.getName() + " is not supported");
+            }
+            entries.put(entry.getName(), entry);
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return new ZipDirectory(b, entries);
+    }
+
+    /**
+     * Check that an archive and the jars stored in it without compression can be read by their directories.
+     * Compressed jars are checked when they are inflated.
+     *
+     * @param archive the zip archive
+     * @throws IOException if the archive or a stored jar can not be read, for example a zip64 archive
+     */
+    public static void verify(File archive) throws IOException {
+        ZipDirectory directory = map(archive);
+        for (Entry entry : directory.getEntries()) {
+            if (entry.isStored() && entry.getName().endsWith(".jar")) {
+                try {
+                    read(directory.getData(entry));
+                } catch (ZipException e) {
+                    throw new ZipException(entry.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * @param entry the entry
+     * @return the data of the entry as it is stored in the archive, compressed or not
+     * @throws IOException if the local header of the entry is invalid
+     */
+    ByteBuffer getData(Entry entry) throws IOException {
+        int pos = (int) entry.localHeaderOffset;
+        if (buffer.getInt(pos) != LOCAL_SIGNATURE) {
+            throw new ZipException("invalid local header for " + entry.getName());
+        }
+        int start = pos + 30 + (buffer.getShort(pos + 26) & 0xffff) + (buffer.getShort(pos + 28) & 0xffff);
+        ByteBuffer data = buffer.duplicate();
+        data.position(start);
+        data.limit(start + (int) entry.compressedSize);
+        return data.slice();
+    }
+
+    InputStream getInputStream(Entry entry) throws IOException {
+        ByteBuffer data = getData(entry);
+        switch (entry.method) {
+            case ZipEntry.STORED:
+                return new ByteBufferInputStream(data);
+            case ZipEntry.DEFLATED:
+                // read from the buffer, the inflater needs an extra dummy byte when reading raw deflate data
+                final Inflater inflater = new Inflater(true);
+                return new InflaterInputStream(new SequenceInputStream(new ByteBufferInputStream(data),
+                        new ByteArrayInputStream(new byte[1])), inflater) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inflater.end();
+                    }
+                };
+            default:
+                throw new ZipException("unsupported compression method " + entry.method + " of " + entry.getName());
+        }
+    }
+
+    static class Entry {
+
+        private final String name;
+
+        private final int method;
+
+        private final long compressedSize;
+
+        private final long size;
+
+        private final long localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        boolean isStored() {
+            return method == ZipEntry.STORED;
+        }
+
+        long getSize() {
+            return size;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -32,6 +32,7 @@ import java.security.cert.Certificate;
 import java.util.Enumeration;
 import java.util.jar.Attributes;
 import java.util.jar.Attributes.Name;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Manifest;
 
 /**
@@ -63,6 +64,8 @@ public final class URIClassLoader extends URLClassLoader {
 
     private final AccessControlContext acc;
 
+    private final AtomicInteger classesDefined = new AtomicInteger();
+
     /**
      * Creates URIClassLoader
      */
@@ -281,7 +284,27 @@ public final class URIClassLoader extends URLClassLoader {
         byte[] b = h.getBytes();
         Certificate[] certs = h.getCertificates();
         CodeSource cs = new CodeSource(url, certs);
-        return defineClass(name, b, 0, b.length, cs);
+        Class c = defineClass(name, b, 0, b.length, cs);
+        classesDefined.incrementAndGet();
+        return c;
+    }
+
+    /**
+     * @return the number of classes this class loader has defined from its search path
+     */
+    public int getClassesDefined() {
+        return classesDefined.get();
+    }
+
+    /**
+     * Close the class loader and release the resources of its search path, like open JAR files.
+     *
+     * @throws IOException if the class loader can not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        finder.destroy();
+        super.close();
     }
 
     public String toString() {
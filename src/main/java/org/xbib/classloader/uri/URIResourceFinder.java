@@ -21,6 +21,8 @@ import org.xbib.classloader.ResourceHandle;
 import org.xbib.classloader.ResourceLocation;
 import org.xbib.classloader.directory.DirectoryResourceLocation;
 import org.xbib.classloader.jar.JarResourceLocation;
+import org.xbib.classloader.jar.NestedJarResourceLocation;
+import org.xbib.classloader.jar.ZipDirectory;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -32,6 +34,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -52,6 +55,9 @@ public class URIResourceFinder implements ResourceFinder {
 
     private final Set<File> watchedFiles = new LinkedHashSet<File>();
 
+    // the directories of archives with nested jars, each archive is mapped and read once
+    private final Map<File, ZipDirectory> archives = new HashMap<File, ZipDirectory>();
+
     private boolean destroyed = false;
 
     public URIResourceFinder() {
@@ -68,6 +74,7 @@ public class URIResourceFinder implements ResourceFinder {
                 resourceLocation.close();
             }
             classPath.clear();
+            archives.clear();
         }
     }
 
@@ -179,7 +186,10 @@ public class URIResourceFinder implements ResourceFinder {
                             File file = new File(uri.getPath());
                             watchedFiles.add(file);
                             continue;
-
+                        }
+                        if ("jar".equals(uri.getScheme())) {
+                            // the jar is not in the archive, there is no location to add and no file to watch
+                            continue;
                         }
                     } catch (IOException ignored) {
                         // can't seem to open the file... this is most likely a bad jar file
@@ -214,6 +224,15 @@ public class URIResourceFinder implements ResourceFinder {
     }
 
     protected File cacheUri(URI uri) throws IOException {
+        if ("jar".equals(uri.getScheme())) {
+            // a jar nested in a zip file, jar:file:/path/bundle.zip!/lib/library.jar
+            String path = uri.getRawSchemeSpecificPart();
+            int pos = path.indexOf("!/");
+            if (pos < 0) {
+                throw new MalformedURLException("Uri does not contain a '!/' delimiter: " + uri);
+            }
+            return cacheUri(URI.create(path.substring(0, pos)));
+        }
         if (!"file".equals(uri.getScheme())) {
             // download the jar
             throw new UnsupportedOperationException("Only local file jars are supported " + uri);
@@ -235,6 +254,19 @@ public class URIResourceFinder implements ResourceFinder {
         if (!cacheFile.canRead()) {
             throw new IOException("File is not readable: " + cacheFile.getAbsolutePath());
         }
+        if ("jar".equals(codeSource.getProtocol())) {
+            try {
+                String path = codeSource.toURI().getSchemeSpecificPart();
+                ZipDirectory archive = archives.get(cacheFile);
+                if (archive == null) {
+                    archive = ZipDirectory.map(cacheFile);
+                    archives.put(cacheFile, archive);
+                }
+                return new NestedJarResourceLocation(codeSource, archive, path.substring(path.indexOf("!/") + 2));
+            } catch (URISyntaxException e) {
+                throw new MalformedURLException(e.getMessage());
+            }
+        }
         return cacheFile.isDirectory() ?
                 // DirectoryResourceLocation will only return "file" URLs within this directory
                 // do not use the DirectoryResourceLocation for non file based uris
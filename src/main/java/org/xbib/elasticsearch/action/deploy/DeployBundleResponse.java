@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+
+import java.io.IOException;
+
+/**
+ * The outcome of deploying one bundle of a batch on a node
+ */
+public class DeployBundleResponse implements Streamable {
+
+    private String name;
+
+    private boolean success;
+
+    private String failure;
+
+    DeployBundleResponse() {
+    }
+
+    DeployBundleResponse(String name, boolean success, String failure) {
+        this.name = name;
+        this.success = success;
+        this.failure = failure;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean getSuccess() {
+        return success;
+    }
+
+    /**
+     * @return the failure message, or null if the bundle was deployed
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    public static DeployBundleResponse readDeployBundleResponse(StreamInput in) throws IOException {
+        DeployBundleResponse response = new DeployBundleResponse();
+        response.readFrom(in);
+        return response;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        name = in.readString();
+        success = in.readBoolean();
+        failure = in.readOptionalString();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(name);
+        out.writeBoolean(success);
+        out.writeOptionalString(failure);
+    }
+}
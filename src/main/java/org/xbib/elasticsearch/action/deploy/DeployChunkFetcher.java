@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.transport.FutureTransportResponseHandler;
+import org.elasticsearch.transport.TransportFuture;
+import org.elasticsearch.transport.TransportRequestOptions;
+import org.elasticsearch.transport.TransportService;
+import org.xbib.elasticsearch.module.deploy.DeployTask;
+import org.xbib.elasticsearch.module.deploy.DeployThrottle;
+import org.xbib.elasticsearch.module.deploy.DeployTransferService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pulls a plugin bundle in chunks from the coordinating node.
+ *
+ * The receiving node decides about chunk size and the number of outstanding fetch requests,
+ * so a busy node takes the bundle at its own pace. Chunks are written to disk by the calling thread,
+ * no faster than the throttle permits.
+ */
+public class DeployChunkFetcher {
+
+    private final TransportService transportService;
+
+    private final DeployTransferService transferService;
+
+    private final DeployThrottle throttle;
+
+    private final int chunkSize;
+
+    private final int maxOutstanding;
+
+    private final TransportRequestOptions options;
+
+    public DeployChunkFetcher(TransportService transportService, DeployTransferService transferService,
+                              DeployThrottle throttle, int chunkSize, int maxOutstanding, TimeValue timeout) {
+        this.transportService = transportService;
+        this.transferService = transferService;
+        this.throttle = throttle;
+        this.chunkSize = chunkSize;
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+        this.options = TransportRequestOptions.options().withTimeout(timeout);
+    }
+
+    /**
+     * Fetch a bundle.
+     *
+     * @param source the node that holds the bundle
+     * @param transferId the transfer ID
+     * @param length the length of the bundle
+     * @param task the task for reporting progress and checking for cancellation
+     * @return the file of the bundle
+     * @throws IOException if the bundle can not be fetched
+     */
+    public File fetch(DiscoveryNode source, String transferId, long length, DeployTask task) throws IOException {
+        Deque<Fetch> fetches = new ArrayDeque<>();
+        long offset = 0L;
+        try {
+            while (offset < length || !fetches.isEmpty()) {
+                task.ensureNotCancelled();
+                if (offset < length && fetches.size() < maxOutstanding) {
+                    int size = (int) Math.min(chunkSize, length - offset);
+                    TransportFuture<DeployFetchResponse> future = transportService.submitRequest(source,
+                            TransportDeployAction.FETCH_ACTION_NAME, new DeployFetchRequest(transferId, offset, size),
+                            options, new FutureTransportResponseHandler<DeployFetchResponse>() {
+                                @Override
+                                public DeployFetchResponse newInstance() {
+                                    return new DeployFetchResponse();
+                                }
+                            });
+                    fetches.add(new Fetch(offset, future));
+                    offset += size;
+                    continue;
+                }
+                Fetch fetch = fetches.poll();
+                DeployFetchResponse response = fetch.future.txGet();
+                if (DeployChunkRequest.checksum(response.getContent()) != response.getChecksum()) {
+                    throw new IOException("checksum mismatch in chunk at offset " + fetch.offset +
+                            " of transfer " + transferId);
+                }
+                task.addThrottleTime(throttle.pause(response.getContent().length()));
+                long startTime = System.nanoTime();
+                transferService.receive(transferId, fetch.offset, response.getContent());
+                task.addBytesWritten(response.getContent().length(), System.nanoTime() - startTime);
+                task.addBytesReceived(response.getContent().length());
+            }
+            long startTime = System.nanoTime();
+            File file = transferService.finish(transferId, length);
+            task.addBytesWritten(0L, System.nanoTime() - startTime);
+            return file;
+        } catch (IOException | RuntimeException e) {
+            for (Fetch fetch : fetches) {
+                fetch.future.cancel(false);
+            }
+            transferService.abort(transferId);
+            throw e;
+        }
+    }
+
+    private static class Fetch {
+
+        private final long offset;
+
+        private final TransportFuture<DeployFetchResponse> future;
+
+        Fetch(long offset, TransportFuture<DeployFetchResponse> future) {
+            this.offset = offset;
+            this.future = future;
+        }
+    }
+}
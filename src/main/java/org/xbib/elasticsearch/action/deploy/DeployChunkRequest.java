@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A chunk of a plugin bundle, sent from the coordinating node to a receiving node
+ */
+public class DeployChunkRequest extends TransportRequest {
+
+    private String transferId;
+
+    private String taskId;
+
+    private String name;
+
+    private long offset;
+
+    private BytesReference content;
+
+    private long checksum;
+
+    private List<DeployRoute> routes;
+
+    DeployChunkRequest() {
+    }
+
+    DeployChunkRequest(String transferId, String taskId, String name, long offset, BytesReference content,
+                       long checksum, List<DeployRoute> routes) {
+        this.transferId = transferId;
+        this.taskId = taskId;
+        this.name = name;
+        this.offset = offset;
+        this.content = content;
+        this.checksum = checksum;
+        this.routes = routes;
+    }
+
+    /**
+     * Create a copy of this chunk for relaying it to the next nodes in the tree.
+     *
+     * @param routes the routes the receiver of the copy has to forward to
+     * @return the copy
+     */
+    DeployChunkRequest forward(List<DeployRoute> routes) {
+        return new DeployChunkRequest(transferId, taskId, name, offset, content, checksum, routes);
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public BytesReference getContent() {
+        return content;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public List<DeployRoute> getRoutes() {
+        return routes != null ? routes : Collections.<DeployRoute>emptyList();
+    }
+
+    /**
+     * Compute the CRC-32 checksum of a chunk
+     *
+     * @param content the chunk
+     * @return the checksum
+     */
+    public static long checksum(BytesReference content) {
+        CRC32 crc32 = new CRC32();
+        if (content.hasArray()) {
+            crc32.update(content.array(), content.arrayOffset(), content.length());
+        } else {
+            BytesRef bytesRef = content.toBytesRef();
+            crc32.update(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+        }
+        return crc32.getValue();
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        transferId = in.readString();
+        taskId = in.readString();
+        name = in.readString();
+        offset = in.readVLong();
+        checksum = in.readLong();
+        content = in.readBytesReference();
+        int size = in.readVInt();
+        routes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            routes.add(DeployRoute.readDeployRoute(in));
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(transferId);
+        out.writeString(taskId);
+        out.writeString(name);
+        out.writeVLong(offset);
+        out.writeLong(checksum);
+        out.writeBytesReference(content);
+        out.writeVInt(getRoutes().size());
+        for (DeployRoute route : getRoutes()) {
+            route.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequestOptions;
+import org.elasticsearch.transport.TransportService;
+import org.xbib.elasticsearch.module.deploy.DeployTask;
+import org.xbib.elasticsearch.module.deploy.DeployThrottle;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a plugin bundle in fixed-size chunks to a set of nodes.
+ *
+ * Each node has at most a fixed number of unacknowledged chunks in flight, so a
+ * slow receiver slows down the sender instead of piling up chunks in memory.
+ * If the nodes are arranged in relay trees, the sender only sends to the roots, and
+ * a root acknowledges a chunk after its whole subtree has received it.
+ * Chunks are sent no faster than the throttle permits.
+ */
+public class DeployChunkSender {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(DeployChunkSender.class.getSimpleName());
+
+    private final TransportService transportService;
+
+    private final String transferId;
+
+    private final DeployThrottle throttle;
+
+    private final DeployTask task;
+
+    private final String name;
+
+    private final BytesReference content;
+
+    private final int chunkSize;
+
+    private final int maxOutstanding;
+
+    private final TransportRequestOptions options;
+
+    private final long[] checksums;
+
+    public DeployChunkSender(TransportService transportService, DeployThrottle throttle, String transferId,
+                             DeployTask task, String name, BytesReference content, int chunkSize, int maxOutstanding,
+                             TimeValue timeout) {
+        this.transportService = transportService;
+        this.throttle = throttle;
+        this.transferId = transferId;
+        this.task = task;
+        this.name = name;
+        this.content = content;
+        this.chunkSize = chunkSize;
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+        this.options = TransportRequestOptions.options().withTimeout(timeout);
+        this.checksums = new long[(content.length() + chunkSize - 1) / chunkSize];
+        for (int i = 0; i < checksums.length; i++) {
+            checksums[i] = DeployChunkRequest.checksum(chunk(i));
+        }
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * Send the bundle along the given relay trees.
+     *
+     * @param nodes the cluster nodes
+     * @param routes the roots of the relay trees
+     * @param listener notified when all nodes acknowledged all chunks, or on the first failure
+     */
+    public void send(DiscoveryNodes nodes, List<DeployRoute> routes, final ActionListener<Void> listener) {
+        if (routes.isEmpty()) {
+            listener.onResponse(null);
+            return;
+        }
+        final AtomicInteger pending = new AtomicInteger(routes.size());
+        final AtomicBoolean failed = new AtomicBoolean();
+        ActionListener<Void> nodeListener = new ActionListener<Void>() {
+            @Override
+            public void onResponse(Void aVoid) {
+                if (pending.decrementAndGet() == 0 && !failed.get()) {
+                    listener.onResponse(null);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                if (failed.compareAndSet(false, true)) {
+                    listener.onFailure(e);
+                }
+            }
+        };
+        logger.info("transfer {}: sending {} bytes in {} chunks along {}",
+                transferId, content.length(), checksums.length, routes);
+        for (DeployRoute route : routes) {
+            DiscoveryNode node = nodes.get(route.getNodeId());
+            if (node == null) {
+                nodeListener.onFailure(new IllegalStateException("node " + route.getNodeId() + " not found"));
+                return;
+            }
+            new NodeSender(node, route.getChildren(), failed, nodeListener).start();
+        }
+    }
+
+    private BytesReference chunk(int i) {
+        int offset = i * chunkSize;
+        return content.slice(offset, Math.min(chunkSize, content.length() - offset));
+    }
+
+    private class NodeSender {
+
+        private final DiscoveryNode node;
+
+        private final List<DeployRoute> children;
+
+        private final AtomicBoolean failed;
+
+        private final ActionListener<Void> listener;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        private final AtomicInteger acknowledged = new AtomicInteger();
+
+        NodeSender(DiscoveryNode node, List<DeployRoute> children, AtomicBoolean failed, ActionListener<Void> listener) {
+            this.node = node;
+            this.children = children;
+            this.failed = failed;
+            this.listener = listener;
+        }
+
+        void start() {
+            for (int i = 0; i < maxOutstanding; i++) {
+                sendNext();
+            }
+        }
+
+        private void sendNext() {
+            if (failed.get()) {
+                return;
+            }
+            final int i = next.getAndIncrement();
+            if (i >= checksums.length) {
+                return;
+            }
+            BytesReference chunk = chunk(i);
+            task.addThrottleTime(throttle.pause(chunk.length()));
+            DeployChunkRequest request = new DeployChunkRequest(transferId, task.getId(), name, (long) i * chunkSize,
+                    chunk, checksums[i], children);
+            transportService.sendRequest(node, TransportDeployAction.CHUNK_ACTION_NAME, request, options,
+                    new BaseTransportResponseHandler<DeployChunkResponse>() {
+                        @Override
+                        public DeployChunkResponse newInstance() {
+                            return new DeployChunkResponse();
+                        }
+
+                        @Override
+                        public void handleResponse(DeployChunkResponse response) {
+                            if (acknowledged.incrementAndGet() == checksums.length) {
+                                logger.debug("transfer {}: node {} received {} bytes",
+                                        transferId, node, response.getReceived());
+                                listener.onResponse(null);
+                            } else {
+                                sendNext();
+                            }
+                        }
+
+                        @Override
+                        public void handleException(TransportException exp) {
+                            logger.error("transfer {}: failed to send chunk {} to node {}", exp, transferId, i, node);
+                            listener.onFailure(exp);
+                        }
+
+                        @Override
+                        public String executor() {
+                            // the next chunk may be paused by the throttle, so do not send it on a network thread
+                            return TransportDeployAction.TRANSFER_THREAD_POOL;
+                        }
+                    });
+        }
+    }
+}
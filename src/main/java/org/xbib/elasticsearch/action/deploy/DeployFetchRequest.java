@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportRequest;
+
+import java.io.IOException;
+
+/**
+ * Asks the coordinating node for a chunk of a plugin bundle
+ */
+public class DeployFetchRequest extends TransportRequest {
+
+    private String transferId;
+
+    private long offset;
+
+    private int length;
+
+    DeployFetchRequest() {
+    }
+
+    DeployFetchRequest(String transferId, long offset, int length) {
+        this.transferId = transferId;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        transferId = in.readString();
+        offset = in.readVLong();
+        length = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(transferId);
+        out.writeVLong(offset);
+        out.writeVInt(length);
+    }
+}
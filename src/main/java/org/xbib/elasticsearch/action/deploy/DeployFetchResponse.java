@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportResponse;
+
+import java.io.IOException;
+
+/**
+ * A chunk of a plugin bundle, with its CRC-32 checksum
+ */
+public class DeployFetchResponse extends TransportResponse {
+
+    private BytesReference content;
+
+    private long checksum;
+
+    DeployFetchResponse() {
+    }
+
+    DeployFetchResponse(BytesReference content, long checksum) {
+        this.content = content;
+        this.checksum = checksum;
+    }
+
+    public BytesReference getContent() {
+        return content;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        content = in.readBytesReference();
+        checksum = in.readLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeBytesReference(content);
+        out.writeLong(checksum);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+
+import java.io.IOException;
+
+/**
+ * How the bundle of a deploy request gets to a single node: not at all because the node holds it already,
+ * read by the node from a path on shared storage, inline in the node request, transferred in chunks ahead of
+ * the node request, or fetched in chunks by the node from the coordinating node. The payload is either the full bundle or a delta against the bundle with the
+ * base digest.
+ */
+public class DeployNodePlan implements Streamable {
+
+    private boolean present;
+
+    private String baseDigest;
+
+    private String sharedPath;
+
+    private String transferId;
+
+    private long transferLength;
+
+    private String sourceNodeId;
+
+    private BytesReference content;
+
+    DeployNodePlan() {
+    }
+
+    static DeployNodePlan present() {
+        DeployNodePlan plan = new DeployNodePlan();
+        plan.present = true;
+        return plan;
+    }
+
+    static DeployNodePlan shared(String sharedPath) {
+        DeployNodePlan plan = new DeployNodePlan();
+        plan.sharedPath = sharedPath;
+        return plan;
+    }
+
+    static DeployNodePlan inline(String baseDigest, BytesReference content) {
+        DeployNodePlan plan = new DeployNodePlan();
+        plan.baseDigest = baseDigest;
+        plan.content = content;
+        return plan;
+    }
+
+    static DeployNodePlan transfer(String baseDigest, String transferId, long transferLength) {
+        DeployNodePlan plan = new DeployNodePlan();
+        plan.baseDigest = baseDigest;
+        plan.transferId = transferId;
+        plan.transferLength = transferLength;
+        return plan;
+    }
+
+    static DeployNodePlan fetch(String baseDigest, String transferId, long transferLength, String sourceNodeId) {
+        DeployNodePlan plan = transfer(baseDigest, transferId, transferLength);
+        plan.sourceNodeId = sourceNodeId;
+        return plan;
+    }
+
+    public boolean isPresent() {
+        return present;
+    }
+
+    /**
+     * @return the digest of the bundle the payload is a delta against, or null if the payload is the full bundle
+     */
+    public String getBaseDigest() {
+        return baseDigest;
+    }
+
+    /**
+     * @return the path to read the bundle from, or null if the bundle is not on shared storage
+     */
+    public String getSharedPath() {
+        return sharedPath;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public long getTransferLength() {
+        return transferLength;
+    }
+
+    /**
+     * @return the node to fetch the payload from, or null if the payload is not fetched by this node
+     */
+    public String getSourceNodeId() {
+        return sourceNodeId;
+    }
+
+    public BytesReference getContent() {
+        return content;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        present = in.readBoolean();
+        baseDigest = in.readOptionalString();
+        sharedPath = in.readOptionalString();
+        transferId = in.readOptionalString();
+        if (transferId != null) {
+            transferLength = in.readVLong();
+            sourceNodeId = in.readOptionalString();
+        } else if (in.readBoolean()) {
+            content = in.readBytesReference();
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeBoolean(present);
+        out.writeOptionalString(baseDigest);
+        out.writeOptionalString(sharedPath);
+        out.writeOptionalString(transferId);
+        if (transferId != null) {
+            out.writeVLong(transferLength);
+            out.writeOptionalString(sourceNodeId);
+        } else {
+            out.writeBoolean(content != null);
+            if (content != null) {
+                out.writeBytesReference(content);
+            }
+        }
+    }
+}
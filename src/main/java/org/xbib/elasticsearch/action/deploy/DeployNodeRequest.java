@@ -21,26 +21,64 @@ import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 
 import java.io.IOException;
+import java.util.List;
 
 public class DeployNodeRequest extends BaseNodeRequest {
 
     private DeployRequest request;
 
+    // one plan for each bundle of a batch, or a single plan
+    private DeployNodePlan[] plans;
+
     DeployNodeRequest() {
     }
 
     DeployNodeRequest(DeployRequest request, String nodeId) {
         super(request, nodeId);
         this.request = request;
+        if (request.isBatch()) {
+            List<DeployRequest> bundles = request.getBundles();
+            this.plans = new DeployNodePlan[bundles.size()];
+            for (int i = 0; i < plans.length; i++) {
+                plans[i] = plan(bundles.get(i), nodeId);
+            }
+        } else {
+            this.plans = new DeployNodePlan[]{plan(request, nodeId)};
+        }
+    }
+
+    private static DeployNodePlan plan(DeployRequest request, String nodeId) {
+        DeployNodePlan plan = request.getPlan(nodeId);
+        return plan != null ? plan : DeployNodePlan.inline(null, request.getContent());
     }
 
     public DeployRequest getRequest() {
         return request;
     }
 
+    /**
+     * @return how the bundle gets to this node
+     */
+    public DeployNodePlan getPlan() {
+        return plans[0];
+    }
+
+    /**
+     * @param i the index of the bundle in a batch
+     * @return how the bundle gets to this node
+     */
+    public DeployNodePlan getPlan(int i) {
+        return plans[i];
+    }
+
     @Override
     public void readFrom(StreamInput in) throws IOException {
         super.readFrom(in);
+        plans = new DeployNodePlan[in.readVInt()];
+        for (int i = 0; i < plans.length; i++) {
+            plans[i] = new DeployNodePlan();
+            plans[i].readFrom(in);
+        }
         request = new DeployRequest();
         request.readFrom(in);
     }
@@ -48,7 +86,11 @@ public class DeployNodeRequest extends BaseNodeRequest {
     @Override
     public void writeTo(StreamOutput out) throws IOException {
         super.writeTo(out);
-        request.writeTo(out);
+        out.writeVInt(plans.length);
+        for (DeployNodePlan plan : plans) {
+            plan.writeTo(out);
+        }
+        request.writeTo(out, false);
     }
 
 }
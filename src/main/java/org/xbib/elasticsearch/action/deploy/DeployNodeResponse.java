@@ -19,8 +19,11 @@ import org.elasticsearch.action.support.nodes.BaseNodeResponse;
 import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
+import org.xbib.elasticsearch.module.deploy.DeployTask;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class DeployNodeResponse extends BaseNodeResponse {
@@ -29,6 +32,14 @@ public class DeployNodeResponse extends BaseNodeResponse {
 
     private Map<String, Object> plugins;
 
+    private Map<String, Object> states;
+
+    private DeployTask task;
+
+    private List<DeployBundleResponse> bundles;
+
+    private long throttleTimeInNanos;
+
     DeployNodeResponse() {
     }
 
@@ -52,6 +63,47 @@ public class DeployNodeResponse extends BaseNodeResponse {
         return plugins;
     }
 
+    public void setStates(Map<String, Object> states) {
+        this.states = states;
+    }
+
+    /**
+     * @return the readiness of the plugins on the node, or null
+     */
+    public Map<String, Object> getStates() {
+        return states;
+    }
+
+    public void setTask(DeployTask task) {
+        this.task = task;
+    }
+
+    public DeployTask getTask() {
+        return task;
+    }
+
+    public void setBundles(List<DeployBundleResponse> bundles) {
+        this.bundles = bundles;
+    }
+
+    /**
+     * @return the outcome for each bundle of a batch deploy, or null
+     */
+    public List<DeployBundleResponse> getBundles() {
+        return bundles;
+    }
+
+    public void setThrottleTimeInNanos(long throttleTimeInNanos) {
+        this.throttleTimeInNanos = throttleTimeInNanos;
+    }
+
+    /**
+     * @return the total time deploys on the node were paused by the throttle, in nanoseconds
+     */
+    public long getThrottleTimeInNanos() {
+        return throttleTimeInNanos;
+    }
+
     public static DeployNodeResponse readDeployNodeResponse(StreamInput in) throws IOException {
         DeployNodeResponse response = new DeployNodeResponse();
         response.readFrom(in);
@@ -63,6 +115,18 @@ public class DeployNodeResponse extends BaseNodeResponse {
         super.readFrom(in);
         success = in.readBoolean();
         plugins = in.readMap();
+        states = in.readMap();
+        if (in.readBoolean()) {
+            task = DeployTask.readDeployTask(in);
+        }
+        if (in.readBoolean()) {
+            int size = in.readVInt();
+            bundles = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                bundles.add(DeployBundleResponse.readDeployBundleResponse(in));
+            }
+        }
+        throttleTimeInNanos = in.readVLong();
     }
 
     @Override
@@ -70,5 +134,18 @@ public class DeployNodeResponse extends BaseNodeResponse {
         super.writeTo(out);
         out.writeBoolean(success);
         out.writeMap(plugins);
+        out.writeMap(states);
+        out.writeBoolean(task != null);
+        if (task != null) {
+            task.writeTo(out);
+        }
+        out.writeBoolean(bundles != null);
+        if (bundles != null) {
+            out.writeVInt(bundles.size());
+            for (DeployBundleResponse bundle : bundles) {
+                bundle.writeTo(out);
+            }
+        }
+        out.writeVLong(throttleTimeInNanos);
     }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportRequest;
+
+import java.io.IOException;
+
+/**
+ * Asks a node whether it already holds a plugin bundle, before any content is transferred
+ */
+public class DeployProbeRequest extends TransportRequest {
+
+    private String name;
+
+    private String digest;
+
+    private boolean delta;
+
+    private String path;
+
+    private long length;
+
+    DeployProbeRequest() {
+    }
+
+    DeployProbeRequest(String name, String digest, boolean delta) {
+        this.name = name;
+        this.digest = digest;
+        this.delta = delta;
+    }
+
+    /**
+     * Ask the node also whether it sees the bundle at a path on shared storage.
+     *
+     * @param path the absolute path of the bundle
+     * @param length the length of the bundle
+     * @return this request
+     */
+    DeployProbeRequest setSharedPath(String path, long length) {
+        this.path = path;
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * @return the path of the bundle on shared storage, or null
+     */
+    public String getSharedPath() {
+        return path;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return true if the node should report the manifest of the installed bundle, as a base for a delta
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        name = in.readString();
+        digest = in.readString();
+        delta = in.readBoolean();
+        path = in.readOptionalString();
+        if (path != null) {
+            length = in.readVLong();
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(name);
+        out.writeString(digest);
+        out.writeBoolean(delta);
+        out.writeOptionalString(path);
+        if (path != null) {
+            out.writeVLong(length);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportResponse;
+import org.xbib.elasticsearch.module.deploy.DeployManifest;
+
+import java.io.IOException;
+
+/**
+ * Tells the coordinating node whether a node already holds a plugin bundle
+ */
+public class DeployProbeResponse extends TransportResponse {
+
+    private boolean present;
+
+    private String baseDigest;
+
+    private DeployManifest manifest;
+
+    private boolean shared;
+
+    DeployProbeResponse() {
+    }
+
+    DeployProbeResponse(boolean present) {
+        this.present = present;
+    }
+
+    DeployProbeResponse(String baseDigest, DeployManifest manifest) {
+        this.present = false;
+        this.baseDigest = baseDigest;
+        this.manifest = manifest;
+    }
+
+    public boolean isPresent() {
+        return present;
+    }
+
+    /**
+     * @return the digest of the installed bundle which can serve as a base for a delta, or null
+     */
+    public String getBaseDigest() {
+        return baseDigest;
+    }
+
+    public DeployManifest getManifest() {
+        return manifest;
+    }
+
+    DeployProbeResponse setShared(boolean shared) {
+        this.shared = shared;
+        return this;
+    }
+
+    /**
+     * @return true if the node sees the bundle at the shared path of the probe request
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        present = in.readBoolean();
+        baseDigest = in.readOptionalString();
+        if (baseDigest != null) {
+            manifest = new DeployManifest();
+            manifest.readFrom(in);
+        }
+        shared = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeBoolean(present);
+        out.writeOptionalString(baseDigest);
+        if (baseDigest != null) {
+            manifest.writeTo(out);
+        }
+        out.writeBoolean(shared);
+    }
+}
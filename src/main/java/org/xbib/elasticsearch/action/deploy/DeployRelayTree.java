@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.elasticsearch.cluster.node.DiscoveryNode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the relay trees along which chunks are distributed.
+ *
+ * With a fan-out of zero, the coordinating node sends to every node itself. Otherwise, each
+ * node forwards to at most fan-out peers. If a node attribute is given, nodes are grouped by
+ * that attribute, and only the first node of each group receives from outside its group.
+ */
+public class DeployRelayTree {
+
+    private DeployRelayTree() {
+    }
+
+    /**
+     * Choose the fan-out for a number of receiving nodes. The transport serializes every chunk request on its own,
+     * so the coordinating node encodes each chunk once per node it sends to. Without a configured fan-out, it sends
+     * to every node itself only up to a maximum number of nodes, and beyond that the nodes relay.
+     *
+     * @param nodes the number of receiving nodes
+     * @param fanOut the configured fan-out, or 0 for none
+     * @param maxDirect the maximum number of nodes to send to directly, or 0 for no maximum
+     * @return the fan-out to build the relay trees with
+     */
+    public static int fanOut(int nodes, int fanOut, int maxDirect) {
+        if (fanOut > 0 || maxDirect <= 0 || nodes <= maxDirect) {
+            return fanOut;
+        }
+        return maxDirect;
+    }
+
+    /**
+     * Build relay trees.
+     *
+     * @param nodes the receiving nodes
+     * @param fanOut the maximum number of peers a node forwards to, or 0 for no relaying
+     * @param attribute the node attribute to group by, or null
+     * @param localNodeId the ID of the coordinating node, preferred as head of its group
+     * @return the roots the coordinating node sends to
+     */
+    public static List<DeployRoute> build(List<DiscoveryNode> nodes, int fanOut, String attribute, String localNodeId) {
+        if (fanOut <= 0) {
+            List<DeployRoute> roots = new ArrayList<>();
+            for (DiscoveryNode node : nodes) {
+                roots.add(new DeployRoute(node.id()));
+            }
+            return roots;
+        }
+        if (attribute == null || attribute.isEmpty()) {
+            return tree(ids(nodes, localNodeId), fanOut);
+        }
+        Map<String, List<DiscoveryNode>> groups = new LinkedHashMap<>();
+        for (DiscoveryNode node : nodes) {
+            String value = node.attributes().get(attribute);
+            List<DiscoveryNode> group = groups.get(value != null ? value : "");
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(value != null ? value : "", group);
+            }
+            group.add(node);
+        }
+        // the heads of the groups form a tree of their own, each head carries the tree of its group
+        List<String> headIds = new ArrayList<>();
+        Map<String, List<DeployRoute>> groupTrees = new LinkedHashMap<>();
+        for (List<DiscoveryNode> group : groups.values()) {
+            List<String> ids = ids(group, localNodeId);
+            String head = ids.remove(0);
+            if (head.equals(localNodeId)) {
+                headIds.add(0, head);
+            } else {
+                headIds.add(head);
+            }
+            groupTrees.put(head, tree(ids, fanOut));
+        }
+        List<DeployRoute> roots = tree(headIds, fanOut);
+        attach(roots, groupTrees);
+        return roots;
+    }
+
+    private static List<String> ids(List<DiscoveryNode> nodes, String localNodeId) {
+        List<String> ids = new ArrayList<>();
+        for (DiscoveryNode node : nodes) {
+            if (node.id().equals(localNodeId)) {
+                ids.add(0, node.id());
+            } else {
+                ids.add(node.id());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Lay out the IDs as a complete tree of the given fan-out below a virtual root.
+     * The children of the i-th node are the nodes at positions (i + 1) * fanOut ... (i + 1) * fanOut + fanOut - 1.
+     */
+    private static List<DeployRoute> tree(List<String> ids, int fanOut) {
+        List<DeployRoute> routes = new ArrayList<>();
+        for (String id : ids) {
+            routes.add(new DeployRoute(id));
+        }
+        for (int i = 0; i < routes.size(); i++) {
+            for (int j = (i + 1) * fanOut; j < (i + 2) * fanOut && j < routes.size(); j++) {
+                routes.get(i).addChild(routes.get(j));
+            }
+        }
+        return new ArrayList<>(routes.subList(0, Math.min(fanOut, routes.size())));
+    }
+
+    private static void attach(List<DeployRoute> routes, Map<String, List<DeployRoute>> groupTrees) {
+        for (DeployRoute route : routes) {
+            attach(route.getChildren(), groupTrees);
+            List<DeployRoute> groupTree = groupTrees.get(route.getNodeId());
+            if (groupTree != null) {
+                route.getChildren().addAll(groupTree);
+            }
+        }
+    }
+}
@@ -15,22 +15,29 @@
  */
 package org.xbib.elasticsearch.action.deploy;
 
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.support.nodes.BaseNodesRequest;
 import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.io.Streams;
-import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.bytes.ChannelBufferBytesReference;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.lang.reflect.Method;
 import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class DeployRequest extends BaseNodesRequest<DeployRequest> {
 
@@ -46,6 +53,34 @@ public class DeployRequest extends BaseNodesRequest<DeployRequest> {
 
     private boolean read;
 
+    private String digest;
+
+    private String taskId;
+
+    private boolean cancel;
+
+    private List<DeployRequest> bundles = new ArrayList<>();
+
+    private int waveSize;
+
+    private boolean shared;
+
+    private TimeValue readyTimeout;
+
+    private boolean activate;
+
+    // content is mapped from this file on demand, not serialized
+    private File file;
+
+    // the mapping of the file, released after the deploy
+    private MappedByteBuffer mapped;
+
+    // content is downloaded from this URL before the deploy
+    private URL url;
+
+    // set on the coordinating node only, not serialized
+    private Map<String, DeployNodePlan> plans;
+
     public DeployRequest() {
     }
 
@@ -53,6 +88,39 @@ public class DeployRequest extends BaseNodesRequest<DeployRequest> {
         super(nodeIds);
     }
 
+    private DeployRequest(DeployRequest request, String... nodeIds) {
+        super(request, nodeIds);
+    }
+
+    /**
+     * Copy this request for some of its nodes, for example for a wave of a rolling deploy.
+     * The copy shares the content, the bundles and the plans of this request.
+     *
+     * @param nodeIds the node IDs of the copy
+     * @return the copy
+     */
+    DeployRequest copy(String... nodeIds) {
+        DeployRequest copy = new DeployRequest(this, nodeIds);
+        copy.timeout(timeout());
+        copy.name = name;
+        copy.path = path;
+        copy.content = content;
+        copy.contentType = contentType;
+        copy.read = read;
+        copy.digest = digest;
+        copy.taskId = taskId;
+        copy.cancel = cancel;
+        copy.bundles = bundles;
+        copy.waveSize = waveSize;
+        copy.shared = shared;
+        copy.readyTimeout = readyTimeout;
+        copy.activate = activate;
+        copy.file = file;
+        copy.url = url;
+        copy.plans = plans;
+        return copy;
+    }
+
     public DeployRequest setRead(boolean read) {
         this.read = read;
         return this;
@@ -76,39 +144,44 @@ public class DeployRequest extends BaseNodesRequest<DeployRequest> {
         if (path == null || path.isEmpty()) {
             throw new IOException("path not given");
         }
-        InputStream in = null;
-        // local access, always allowed
+        // local access, always allowed, the file is memory-mapped instead of copied to the heap
         File f = new File(path);
-        if (f.exists() && f.canRead()) {
-            in = new FileInputStream(f);
-        } else {
-            // try URL
-            try {
-                URL url = new URL(path);
-                // caution: do not download from unconfigured domains
-                String[] domains = settings.getAsArray("plugins.deploy.domains");
-                boolean allowed = false;
-                if (domains != null) {
-                    for (String domain : domains) {
-                        allowed = allowed || url.getHost().endsWith(domain);
-                    }
-                }
-                if (allowed) {
-                    in = url.openStream();
-                }
-            } catch (MalformedURLException e) {
-                //
-            }
-            if (in == null) {
-                throw new IOException("can't read from " + path);
-            }
+        if (f.isFile() && f.canRead()) {
+            setFile(f, digest);
+            logger.debug("content mapped from {}, length = {}", f, f.length());
+            return this;
+        }
+        // try URL, the bundle is downloaded on the coordinating node, into the download cache
+        URL url = null;
+        try {
+            url = new URL(path);
+        } catch (MalformedURLException e) {
+            //
         }
-        BytesStreamOutput out = new BytesStreamOutput();
-        Streams.copy(in, out);
-        in.close();
-        out.close();
-        this.content = out.bytes();
-        logger.debug("content length = {}", content.length());
+        if (url == null || !isPermitted(settings, url)) {
+            throw new IOException("can't read from " + path);
+        }
+        this.url = url;
+        this.file = null;
+        this.content = null;
+        return this;
+    }
+
+    /**
+     * @return the URL to download the bundle from, or null
+     */
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * Set the path of the bundle without reading from it, if the content is given otherwise.
+     *
+     * @param path the path
+     * @return this request
+     */
+    public DeployRequest setPath(String path) {
+        this.path = path;
         return this;
     }
 
@@ -130,32 +203,295 @@ public class DeployRequest extends BaseNodesRequest<DeployRequest> {
         return this;
     }
 
+    /**
+     * Get the content. Content from a file is mapped once, and the mapping is kept until
+     * {@link #releaseContent()}.
+     *
+     * @return the content, or null
+     */
     public BytesReference getContent() {
+        if (content == null && file != null) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                content = new ChannelBufferBytesReference(ChannelBuffers.wrappedBuffer(mapped));
+            } catch (IOException e) {
+                throw new ElasticsearchException("can not read " + file.getAbsolutePath(), e);
+            }
+        }
         return content;
     }
 
+    /**
+     * Release the mapping of the content from a file. The content must not be in use anymore.
+     */
+    void releaseContent() {
+        if (mapped == null) {
+            return;
+        }
+        content = null;
+        try {
+            // there is no API to unmap a buffer before it is garbage collected
+            Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(mapped);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            logger.debug("can not unmap {}, it is unmapped when garbage collected", e, file);
+        }
+        mapped = null;
+    }
+
+    /**
+     * Take the content from a file, instead of holding it in the heap. The file is memory-mapped when
+     * the content is needed.
+     *
+     * @param file the file
+     * @param digest the SHA-256 digest of the file, or null
+     * @return this request
+     */
+    public DeployRequest setFile(File file, String digest) {
+        releaseContent();
+        this.file = file;
+        this.digest = digest;
+        this.content = null;
+        this.url = null;
+        return this;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Set the SHA-256 digest of the bundle, as a hex string
+     *
+     * @param digest the digest
+     * @return this request
+     */
+    public DeployRequest setDigest(String digest) {
+        this.digest = digest;
+        return this;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Set the ID of the deploy task. With a read request, the progress of this task is read.
+     *
+     * @param taskId the task ID
+     * @return this request
+     */
+    public DeployRequest setTaskId(String taskId) {
+        this.taskId = taskId;
+        return this;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    /**
+     * Cancel the task, together with a read request for the task.
+     *
+     * @param cancel true if the task is to be cancelled
+     * @return this request
+     */
+    public DeployRequest setCancel(boolean cancel) {
+        this.cancel = cancel;
+        return this;
+    }
+
+    public boolean getCancel() {
+        return cancel;
+    }
+
+    /**
+     * Add a bundle to a batch deploy. The bundles of a batch are deployed together, and the nodes install
+     * them in parallel.
+     *
+     * @param bundle the request for the bundle, with name and content
+     * @return this request
+     */
+    public DeployRequest addBundle(DeployRequest bundle) {
+        bundles.add(bundle);
+        return this;
+    }
+
+    public List<DeployRequest> getBundles() {
+        return bundles;
+    }
+
+    public boolean isBatch() {
+        return !bundles.isEmpty();
+    }
+
+    /**
+     * Deploy to this many nodes at a time. The next wave starts when the nodes of a wave have started
+     * the plugin services, and the cluster health is green.
+     *
+     * @param waveSize the number of nodes in a wave, or 0 for deploying to all nodes at once
+     * @return this request
+     */
+    public DeployRequest setWaveSize(int waveSize) {
+        this.waveSize = waveSize;
+        return this;
+    }
+
+    public int getWaveSize() {
+        return waveSize;
+    }
+
+    /**
+     * Let the nodes read the bundle from its local path, if they see the same file, for example on a shared
+     * file system. Nodes which do not see the file receive the bundle as usual.
+     *
+     * @param shared true if the local path of the bundle is on shared storage
+     * @return this request
+     */
+    public DeployRequest setShared(boolean shared) {
+        this.shared = shared;
+        return this;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Wait for the plugin to become ready on each node, while it is loading or starting,
+     * before it is listed or replaced.
+     *
+     * @param readyTimeout the time to wait at most
+     * @return this request
+     */
+    public DeployRequest setReadyTimeout(TimeValue readyTimeout) {
+        this.readyTimeout = readyTimeout;
+        return this;
+    }
+
+    public TimeValue getReadyTimeout() {
+        return readyTimeout;
+    }
+
+    /**
+     * Activate a lazy plugin on each node, as if it was used.
+     *
+     * @param activate true for activating the plugin with the name of this request
+     * @return this request
+     */
+    public DeployRequest setActivate(boolean activate) {
+        this.activate = activate;
+        return this;
+    }
+
+    public boolean getActivate() {
+        return activate;
+    }
+
+    DeployRequest setPlans(Map<String, DeployNodePlan> plans) {
+        this.plans = plans;
+        return this;
+    }
+
+    /**
+     * @param nodeId the node ID
+     * @return how the bundle gets to the node, or null if the content is sent along with the node request
+     */
+    DeployNodePlan getPlan(String nodeId) {
+        return plans != null ? plans.get(nodeId) : null;
+    }
+
+    /**
+     * Check if a URL is in one of the domains that are configured in {@code plugins.deploy.domains}.
+     *
+     * @param settings the settings
+     * @param url the URL
+     * @return true if bundles may be downloaded from the URL
+     */
+    public static boolean isPermitted(Settings settings, URL url) {
+        // caution: do not download from unconfigured domains
+        String[] domains = settings.getAsArray("plugins.deploy.domains");
+        boolean allowed = false;
+        if (domains != null) {
+            for (String domain : domains) {
+                allowed = allowed || url.getHost().endsWith(domain);
+            }
+        }
+        return allowed;
+    }
+
     @Override
     public void readFrom(StreamInput in) throws IOException {
         super.readFrom(in);
         this.read = in.readBoolean();
-        this.name = in.readString();
-        this.path = in.readString();
-        this.content = in.readBytesReference();
+        this.name = in.readOptionalString();
+        this.path = in.readOptionalString();
+        this.contentType = in.readOptionalString();
+        this.digest = in.readOptionalString();
+        this.taskId = in.readOptionalString();
+        this.cancel = in.readBoolean();
+        if (in.readBoolean()) {
+            this.content = in.readBytesReference();
+        }
+        this.waveSize = in.readVInt();
+        this.shared = in.readBoolean();
+        if (in.readBoolean()) {
+            this.readyTimeout = TimeValue.readTimeValue(in);
+        }
+        this.activate = in.readBoolean();
+        String s = in.readOptionalString();
+        this.url = s != null ? new URL(s) : null;
+        int size = in.readVInt();
+        bundles = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            DeployRequest bundle = new DeployRequest();
+            bundle.readFrom(in);
+            bundles.add(bundle);
+        }
     }
 
     @Override
     public void writeTo(StreamOutput out) throws IOException {
+        writeTo(out, true);
+    }
+
+    void writeTo(StreamOutput out, boolean withContent) throws IOException {
         super.writeTo(out);
-        if (name == null) {
-            throw new IOException("no name was given for deploy request");
-        }
-        if (content == null) {
-            throw new IOException("no valid path was given for deploy request");
+        if (!read && !isBatch()) {
+            if (name == null) {
+                throw new IOException("no name was given for deploy request");
+            }
+            if (withContent && getContent() == null && url == null) {
+                throw new IOException("no valid path was given for deploy request");
+            }
         }
         out.writeBoolean(read);
-        out.writeString(name);
-        out.writeString(path);
-        out.writeBytesReference(content);
+        out.writeOptionalString(name);
+        out.writeOptionalString(path);
+        out.writeOptionalString(contentType);
+        out.writeOptionalString(digest);
+        out.writeOptionalString(taskId);
+        out.writeBoolean(cancel);
+        out.writeBoolean(withContent && getContent() != null);
+        if (withContent && getContent() != null) {
+            out.writeBytesReference(getContent());
+        }
+        out.writeVInt(waveSize);
+        out.writeBoolean(shared);
+        out.writeBoolean(readyTimeout != null);
+        if (readyTimeout != null) {
+            readyTimeout.writeTo(out);
+        }
+        out.writeBoolean(activate);
+        out.writeOptionalString(url != null ? url.toString() : null);
+        out.writeVInt(bundles.size());
+        for (DeployRequest bundle : bundles) {
+            bundle.writeTo(out, withContent);
+        }
     }
 
 }
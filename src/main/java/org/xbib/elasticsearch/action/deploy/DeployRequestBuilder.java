@@ -19,7 +19,9 @@ import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
 import org.elasticsearch.client.ElasticsearchClient;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 
+import java.io.File;
 import java.io.IOException;
 
 public class DeployRequestBuilder extends NodesOperationRequestBuilder<DeployRequest, DeployResponse, DeployRequestBuilder> {
@@ -43,16 +45,61 @@ public class DeployRequestBuilder extends NodesOperationRequestBuilder<DeployReq
         return this;
     }
 
+    public DeployRequestBuilder setPath(String path) {
+        request.setPath(path);
+        return this;
+    }
+
     public DeployRequestBuilder setContent(BytesReference content) {
         request.setContent(content);
         return this;
     }
 
+    public DeployRequestBuilder setFile(File file, String digest) {
+        request.setFile(file, digest);
+        return this;
+    }
+
     public DeployRequestBuilder setContentType(String contentType) {
         request.setContentType(contentType);
         return this;
     }
 
+    public DeployRequestBuilder setTaskId(String taskId) {
+        request.setTaskId(taskId);
+        return this;
+    }
+
+    public DeployRequestBuilder setCancel(boolean cancel) {
+        request.setCancel(cancel);
+        return this;
+    }
+
+    public DeployRequestBuilder addBundle(DeployRequest bundle) {
+        request.addBundle(bundle);
+        return this;
+    }
+
+    public DeployRequestBuilder setWaveSize(int waveSize) {
+        request.setWaveSize(waveSize);
+        return this;
+    }
+
+    public DeployRequestBuilder setShared(boolean shared) {
+        request.setShared(shared);
+        return this;
+    }
+
+    public DeployRequestBuilder setReadyTimeout(TimeValue readyTimeout) {
+        request.setReadyTimeout(readyTimeout);
+        return this;
+    }
+
+    public DeployRequestBuilder setActivate(boolean activate) {
+        request.setActivate(activate);
+        return this;
+    }
+
     public DeployRequestBuilder setRead(boolean read) {
         request.setRead(read);
         return this;
@@ -23,9 +23,14 @@ import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class DeployResponse extends BaseNodesResponse<DeployNodeResponse> implements ToXContent {
 
+    private List<DeployWave> waves;
+
     DeployResponse() {
     }
 
@@ -33,6 +38,17 @@ public class DeployResponse extends BaseNodesResponse<DeployNodeResponse> implem
         super(clusterName, responses);
     }
 
+    public void setWaves(List<DeployWave> waves) {
+        this.waves = waves;
+    }
+
+    /**
+     * @return the waves of a rolling deploy, or null
+     */
+    public List<DeployWave> getWaves() {
+        return waves;
+    }
+
     @Override
     public void readFrom(StreamInput in) throws IOException {
         super.readFrom(in);
@@ -40,6 +56,13 @@ public class DeployResponse extends BaseNodesResponse<DeployNodeResponse> implem
         for (int i = 0; i < nodes.length; i++) {
             nodes[i] = DeployNodeResponse.readDeployNodeResponse(in);
         }
+        if (in.readBoolean()) {
+            int size = in.readVInt();
+            waves = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                waves.add(DeployWave.readDeployWave(in));
+            }
+        }
     }
 
     @Override
@@ -49,6 +72,13 @@ public class DeployResponse extends BaseNodesResponse<DeployNodeResponse> implem
         for (DeployNodeResponse node : nodes) {
             node.writeTo(out);
         }
+        out.writeBoolean(waves != null);
+        if (waves != null) {
+            out.writeVInt(waves.size());
+            for (DeployWave wave : waves) {
+                wave.writeTo(out);
+            }
+        }
     }
 
     @Override
@@ -57,12 +87,39 @@ public class DeployResponse extends BaseNodesResponse<DeployNodeResponse> implem
         if (getNodes() != null) {
             builder.startArray("nodes");
             for (DeployNodeResponse response : getNodes()) {
-                if (response.getPlugins() != null) {
+                if (response.getTask() != null) {
+                    builder.startObject()
+                            .field("name", response.getNode().getName())
+                            .startObject("task");
+                    response.getTask().toXContent(builder, params);
+                    builder.endObject().endObject();
+                } else if (response.getPlugins() != null) {
                     builder.startObject()
                             .field("name", response.getNode().getName())
                             .field("plugins")
-                            .map(response.getPlugins())
-                            .endObject();
+                            .map(response.getPlugins());
+                    if (response.getStates() != null) {
+                        builder.field("states").map(response.getStates());
+                    }
+                    builder.field("throttle_time_in_millis",
+                            TimeUnit.NANOSECONDS.toMillis(response.getThrottleTimeInNanos()));
+                    builder.endObject();
+                } else if (response.getBundles() != null) {
+                    builder.startObject()
+                            .field("name", response.getNode().getName())
+                            .field("success", response.getSuccess())
+                            .startArray("bundles");
+                    for (DeployBundleResponse bundle : response.getBundles()) {
+                        builder.startObject()
+                                .field("name", bundle.getName())
+                                .field("success", bundle.getSuccess());
+                        if (bundle.getFailure() != null) {
+                            builder.field("failure", bundle.getFailure());
+                        }
+                        builder.endObject();
+                    }
+                    builder.endArray().endObject();
+                    b = b && response.getSuccess();
                 } else {
                     builder.startObject()
                             .field("name", response.getNode().getName())
@@ -73,6 +130,13 @@ public class DeployResponse extends BaseNodesResponse<DeployNodeResponse> implem
             }
             builder.endArray();
         }
+        if (waves != null) {
+            builder.startArray("waves");
+            for (DeployWave wave : waves) {
+                wave.toXContent(builder, params);
+            }
+            builder.endArray();
+        }
         builder.field("deployed", b);
         return builder;
     }
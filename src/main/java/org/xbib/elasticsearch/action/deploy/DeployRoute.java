@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A node in a relay tree, together with the subtree the node forwards chunks to
+ */
+public class DeployRoute implements Streamable {
+
+    private String nodeId;
+
+    private List<DeployRoute> children;
+
+    DeployRoute() {
+        this.children = new ArrayList<>();
+    }
+
+    public DeployRoute(String nodeId) {
+        this.nodeId = nodeId;
+        this.children = new ArrayList<>();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public List<DeployRoute> getChildren() {
+        return children;
+    }
+
+    public DeployRoute addChild(DeployRoute child) {
+        children.add(child);
+        return this;
+    }
+
+    /**
+     * @return the number of nodes in this subtree, including this node
+     */
+    public int size() {
+        int size = 1;
+        for (DeployRoute child : children) {
+            size += child.size();
+        }
+        return size;
+    }
+
+    public static DeployRoute readDeployRoute(StreamInput in) throws IOException {
+        DeployRoute route = new DeployRoute();
+        route.readFrom(in);
+        return route;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        nodeId = in.readString();
+        int size = in.readVInt();
+        children = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            children.add(readDeployRoute(in));
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(nodeId);
+        out.writeVInt(children.size());
+        for (DeployRoute child : children) {
+            child.writeTo(out);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return children.isEmpty() ? nodeId : nodeId + children;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.action.deploy;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A wave of a rolling deploy: the nodes that were deployed to together, how long it took until
+ * they were done and the cluster was healthy again, and the cluster health after the wave
+ */
+public class DeployWave implements Streamable, ToXContent {
+
+    private int wave;
+
+    private List<String> nodes;
+
+    private long tookInMillis;
+
+    private ClusterHealthStatus health;
+
+    DeployWave() {
+    }
+
+    DeployWave(int wave, List<String> nodes, long tookInMillis, ClusterHealthStatus health) {
+        this.wave = wave;
+        this.nodes = nodes;
+        this.tookInMillis = tookInMillis;
+        this.health = health;
+    }
+
+    public int getWave() {
+        return wave;
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public long getTookInMillis() {
+        return tookInMillis;
+    }
+
+    public ClusterHealthStatus getHealth() {
+        return health;
+    }
+
+    public static DeployWave readDeployWave(StreamInput in) throws IOException {
+        DeployWave wave = new DeployWave();
+        wave.readFrom(in);
+        return wave;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        wave = in.readVInt();
+        int size = in.readVInt();
+        nodes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            nodes.add(in.readString());
+        }
+        tookInMillis = in.readVLong();
+        health = ClusterHealthStatus.fromValue(in.readByte());
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(wave);
+        out.writeVInt(nodes.size());
+        for (String node : nodes) {
+            out.writeString(node);
+        }
+        out.writeVLong(tookInMillis);
+        out.writeByte(health.value());
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject()
+                .field("wave", wave)
+                .field("nodes", nodes)
+                .field("took_in_millis", tookInMillis)
+                .field("health", health.name().toLowerCase())
+                .endObject();
+        return builder;
+    }
+}
@@ -16,43 +16,140 @@
 package org.xbib.elasticsearch.action.deploy;
 
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.action.admin.cluster.health.TransportClusterHealthAction;
 import org.elasticsearch.action.support.ActionFilters;
 import org.elasticsearch.action.support.nodes.TransportNodesAction;
 import org.elasticsearch.cluster.ClusterName;
 import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.ChannelBufferBytesReference;
+import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.inject.Injector;
-import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.lease.Releasables;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequestHandler;
+import org.elasticsearch.transport.TransportRequestOptions;
 import org.elasticsearch.transport.TransportService;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.xbib.elasticsearch.module.deploy.DeployDelta;
+import org.xbib.elasticsearch.module.deploy.DeployDownloadService;
+import org.xbib.elasticsearch.module.deploy.DeployManifest;
+import org.xbib.elasticsearch.module.deploy.DeployRegistry;
 import org.xbib.elasticsearch.module.deploy.DeployService;
+import org.xbib.elasticsearch.module.deploy.DeployStore;
+import org.xbib.elasticsearch.module.deploy.DeployTask;
+import org.xbib.elasticsearch.module.deploy.DeployTaskService;
+import org.xbib.elasticsearch.module.deploy.DeployThrottle;
+import org.xbib.elasticsearch.module.deploy.DeployTransferService;
 import org.xbib.elasticsearch.plugin.deploy.DeployPlugin;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.ZipFile;
 
 public class TransportDeployAction extends TransportNodesAction<DeployRequest, DeployResponse, DeployNodeRequest, DeployNodeResponse> {
 
+    public static final String PROBE_ACTION_NAME = DeployAction.NAME + "[probe]";
+
+    public static final String CHUNK_ACTION_NAME = DeployAction.NAME + "[chunk]";
+
+    public static final String FETCH_ACTION_NAME = DeployAction.NAME + "[fetch]";
+
+    public static final String READ_ACTION_NAME = DeployAction.NAME + "[read]";
+
+    /**
+     * The thread pool for installs: unpacking and starting plugins, preparing payloads on the coordinating node
+     */
+    public static final String DEPLOY_THREAD_POOL = "deploy";
+
+    /**
+     * The thread pool for listing the deployed plugins, so reads never wait behind an install
+     */
+    public static final String READ_THREAD_POOL = "deploy_read";
+
+    /**
+     * The thread pool for probes and chunks, which must not wait for installs that wait for chunks
+     */
+    public static final String TRANSFER_THREAD_POOL = "deploy_transfer";
+
+    /**
+     * The thread pool for installing the bundles of a batch, besides the thread of the node operation
+     */
+    public static final String BUNDLE_THREAD_POOL = "deploy_bundle";
+
     private final Environment environment;
 
     private final Injector injector;
 
+    private final ReadAction readAction;
+
+    private final int chunkSize;
+
+    private final int maxOutstandingChunks;
+
+    private final TimeValue chunkTimeout;
+
+    private final int relayFanOut;
+
+    private final int relayMaxDirect;
+
+    private final String relayAttribute;
+
+    private final boolean deltaEnabled;
+
+    private final boolean pull;
+
+    private final int maxOutstandingFetches;
+
+    private final TimeValue healthTimeout;
+
+    private final TimeValue readyTimeout;
+
+    private final File deltaDir;
+
+    // bundles that nodes fetch from this node, by transfer ID
+    private final Map<String, Tuple<BytesReference, DeployTask>> sources = new ConcurrentHashMap<>();
+
     @Inject
     public TransportDeployAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
                                  ClusterService clusterService, TransportService transportService,
@@ -61,9 +158,528 @@ public class TransportDeployAction extends TransportNodesAction<DeployRequest, D
                                  Injector injector) {
         super(settings, DeployAction.NAME, clusterName, threadPool, clusterService, transportService,
                 actionFilters, indexNameExpressionResolver, DeployRequest.class, DeployNodeRequest.class,
-                ThreadPool.Names.MANAGEMENT);
+                DEPLOY_THREAD_POOL);
         this.environment = environment;
         this.injector = injector;
+        this.deltaDir = new File(environment.pluginsFile().toFile(), DeployPlugin.NAME + File.separator + "deltas");
+        // deltas left over from a previous run
+        File[] files = deltaDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    logger.warn("can not delete {}", file.getAbsolutePath());
+                }
+            }
+        }
+        this.chunkSize = settings.getAsBytesSize("plugins.deploy.transfer.chunk_size",
+                new ByteSizeValue(512, ByteSizeUnit.KB)).bytesAsInt();
+        this.maxOutstandingChunks = settings.getAsInt("plugins.deploy.transfer.max_outstanding_chunks", 4);
+        this.chunkTimeout = settings.getAsTime("plugins.deploy.transfer.chunk_timeout", TimeValue.timeValueSeconds(60));
+        this.relayFanOut = settings.getAsInt("plugins.deploy.relay.fan_out", 0);
+        this.relayMaxDirect = settings.getAsInt("plugins.deploy.relay.max_direct", 8);
+        this.relayAttribute = settings.get("plugins.deploy.relay.attribute");
+        this.deltaEnabled = settings.getAsBoolean("plugins.deploy.delta.enabled", true);
+        this.pull = "pull".equals(settings.get("plugins.deploy.transfer.mode", "push"));
+        this.maxOutstandingFetches = settings.getAsInt("plugins.deploy.fetch.max_outstanding", 4);
+        this.healthTimeout = settings.getAsTime("plugins.deploy.rolling.health_timeout", TimeValue.timeValueSeconds(60));
+        this.readyTimeout = settings.getAsTime("plugins.deploy.ready_timeout", TimeValue.timeValueSeconds(30));
+        transportService.registerRequestHandler(PROBE_ACTION_NAME, DeployProbeRequest.class,
+                TRANSFER_THREAD_POOL, new ProbeTransportHandler());
+        transportService.registerRequestHandler(CHUNK_ACTION_NAME, DeployChunkRequest.class,
+                TRANSFER_THREAD_POOL, new ChunkTransportHandler());
+        transportService.registerRequestHandler(FETCH_ACTION_NAME, DeployFetchRequest.class,
+                TRANSFER_THREAD_POOL, new FetchTransportHandler());
+        this.readAction = new ReadAction(settings, clusterName, threadPool, clusterService, transportService,
+                actionFilters, indexNameExpressionResolver);
+    }
+
+    @Override
+    protected void doExecute(final DeployRequest request, final ActionListener<DeployResponse> deployListener) {
+        if (request.getRead()) {
+            readAction.execute(request, deployListener);
+            return;
+        }
+        if (request.getTaskId() == null) {
+            request.setTaskId(Strings.randomBase64UUID());
+        }
+        final DeployTask task = injector.getInstance(DeployTaskService.class)
+                .register(request.getTaskId(), taskName(request));
+        final ActionListener<DeployResponse> listener = new ActionListener<DeployResponse>() {
+            @Override
+            public void onResponse(DeployResponse response) {
+                if (!task.isFinished()) {
+                    task.done();
+                }
+                deployListener.onResponse(response);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                task.fail(e);
+                deployListener.onFailure(e);
+            }
+        };
+        if (!request.isBatch() && request.getContent() == null && request.getUrl() == null) {
+            super.doExecute(request, listener);
+            return;
+        }
+        final List<DeployRequest> bundles = request.isBatch() ? request.getBundles() :
+                Collections.singletonList(request);
+        // digest and checksum computation may take a while for large bundles, keep it off the calling thread
+        threadPool.executor(DEPLOY_THREAD_POOL).execute(new AbstractRunnable() {
+            @Override
+            protected void doRun() throws Exception {
+                final ClusterState clusterState = clusterService.state();
+                String[] nodeIds = resolveNodes(request, clusterState);
+                request.nodesIds(nodeIds);
+                // pull sources, released after the deploy
+                final List<Releasable> resources = new CopyOnWriteArrayList<>();
+                final ActionListener<DeployResponse> sourcesListener = new ActionListener<DeployResponse>() {
+                    @Override
+                    public void onResponse(DeployResponse response) {
+                        Releasables.close(resources);
+                        listener.onResponse(response);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        Releasables.close(resources);
+                        listener.onFailure(e);
+                    }
+                };
+                final AtomicInteger pending = new AtomicInteger(bundles.size());
+                final AtomicReference<Throwable> failure = new AtomicReference<>();
+                ActionListener<Void> bundleListener = new ActionListener<Void>() {
+                    @Override
+                    public void onResponse(Void aVoid) {
+                        if (pending.decrementAndGet() == 0) {
+                            if (failure.get() != null) {
+                                sourcesListener.onFailure(failure.get());
+                            } else if (task.isCancelled()) {
+                                sourcesListener.onFailure(new CancellationException("deploy task " + task.getId() +
+                                        " was cancelled"));
+                            } else if (request.getWaveSize() > 0) {
+                                new RollingDeploy(clusterState, request, task, sourcesListener).run(0);
+                            } else {
+                                TransportDeployAction.super.doExecute(request, sourcesListener);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        failure.compareAndSet(null, e);
+                        onResponse(null);
+                    }
+                };
+                // the bundles of a batch are probed and transferred concurrently
+                for (DeployRequest bundle : bundles) {
+                    bundle.nodesIds(nodeIds);
+                    prepare(clusterState, bundle, task, resources, bundleListener);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                listener.onFailure(t);
+            }
+        });
+    }
+
+    /**
+     * Deploys to the nodes in waves. A wave starts after the nodes of the previous wave have
+     * started the plugin services and the cluster health is green again.
+     */
+    private class RollingDeploy {
+
+        private final ClusterState clusterState;
+
+        private final DeployRequest request;
+
+        private final DeployTask task;
+
+        private final ActionListener<DeployResponse> listener;
+
+        private final List<String[]> waves = new ArrayList<>();
+
+        private final List<DeployNodeResponse> nodes = new ArrayList<>();
+
+        private final List<DeployWave> results = new ArrayList<>();
+
+        RollingDeploy(ClusterState clusterState, DeployRequest request, DeployTask task,
+                      ActionListener<DeployResponse> listener) {
+            this.clusterState = clusterState;
+            this.request = request;
+            this.task = task;
+            this.listener = listener;
+            String[] nodeIds = request.nodesIds();
+            for (int i = 0; i < nodeIds.length; i += request.getWaveSize()) {
+                waves.add(Arrays.copyOfRange(nodeIds, i, Math.min(nodeIds.length, i + request.getWaveSize())));
+            }
+        }
+
+        void run(final int i) {
+            if (i == waves.size()) {
+                DeployResponse response = new DeployResponse(clusterName, nodes.toArray(new DeployNodeResponse[nodes.size()]));
+                response.setWaves(results);
+                listener.onResponse(response);
+                return;
+            }
+            if (task.isCancelled()) {
+                listener.onFailure(new CancellationException("deploy task " + task.getId() + " was cancelled before wave " +
+                        (i + 1) + " of " + waves.size()));
+                return;
+            }
+            final String[] wave = waves.get(i);
+            final long startTime = System.currentTimeMillis();
+            logger.info("{}: wave {} of {} deploys to {}", task.getName(), i + 1, waves.size(), Arrays.toString(wave));
+            // a copy per wave, the request keeps all the nodes
+            TransportDeployAction.super.doExecute(request.copy(wave), new ActionListener<DeployResponse>() {
+                @Override
+                public void onResponse(DeployResponse response) {
+                    nodes.addAll(Arrays.asList(response.getNodes()));
+                    boolean success = response.getNodes().length == wave.length;
+                    for (DeployNodeResponse nodeResponse : response.getNodes()) {
+                        success = success && nodeResponse.getSuccess();
+                    }
+                    if (!success) {
+                        listener.onFailure(new ElasticsearchException("wave " + (i + 1) + " of " + waves.size() +
+                                " failed on some of " + Arrays.toString(wave) + ", remaining waves are not deployed"));
+                        return;
+                    }
+                    waitForHealth(i, wave, startTime);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    listener.onFailure(e);
+                }
+            });
+        }
+
+        private void waitForHealth(final int i, final String[] wave, final long startTime) {
+            ClusterHealthRequest healthRequest = new ClusterHealthRequest().waitForGreenStatus().timeout(healthTimeout);
+            injector.getInstance(TransportClusterHealthAction.class).execute(healthRequest,
+                    new ActionListener<ClusterHealthResponse>() {
+                        @Override
+                        public void onResponse(ClusterHealthResponse health) {
+                            long took = System.currentTimeMillis() - startTime;
+                            List<String> names = new ArrayList<>();
+                            for (String nodeId : wave) {
+                                DiscoveryNode node = clusterState.nodes().get(nodeId);
+                                names.add(node != null ? node.name() : nodeId);
+                            }
+                            results.add(new DeployWave(i + 1, names, took, health.getStatus()));
+                            logger.info("{}: wave {} of {} took {} ms, cluster health is {}", task.getName(),
+                                    i + 1, waves.size(), took, health.getStatus());
+                            if (health.isTimedOut() || health.getStatus() != ClusterHealthStatus.GREEN) {
+                                listener.onFailure(new ElasticsearchException("cluster health is " + health.getStatus() +
+                                        " after wave " + (i + 1) + " of " + waves.size() +
+                                        ", remaining waves are not deployed"));
+                                return;
+                            }
+                            run(i + 1);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            listener.onFailure(e);
+                        }
+                    });
+        }
+    }
+
+    private static String taskName(DeployRequest request) {
+        if (!request.isBatch()) {
+            return request.getName() != null ? request.getName() : "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (DeployRequest bundle : request.getBundles()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(bundle.getName());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compute the digest of a bundle, probe the nodes, and get the bundle to the nodes that need it.
+     */
+    private void prepare(final ClusterState clusterState, final DeployRequest bundle, final DeployTask task,
+                         final List<Releasable> resources, final ActionListener<Void> listener) {
+        if (bundle.getUrl() != null && bundle.getContent() == null) {
+            // download into the cache first, the cached bundle is held until the deploy is finished
+            injector.getInstance(DeployDownloadService.class).download(bundle.getUrl(),
+                    new ActionListener<DeployDownloadService.Download>() {
+                        @Override
+                        public void onResponse(DeployDownloadService.Download download) {
+                            resources.add(download);
+                            bundle.setFile(download.getFile(), download.getDigest());
+                            prepare(clusterState, bundle, task, resources, listener);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            listener.onFailure(e);
+                        }
+                    });
+            return;
+        }
+        try {
+            if (bundle.getContent() == null) {
+                // the nodes report the missing content for this bundle
+                listener.onResponse(null);
+                return;
+            }
+            if (bundle.getFile() != null) {
+                // the file is mapped once for digest, probe and transfer, and unmapped after the deploy
+                resources.add(new Releasable() {
+                    @Override
+                    public void close() {
+                        bundle.releaseContent();
+                    }
+                });
+            }
+            if (bundle.getDigest() == null) {
+                bundle.setDigest(DeployStore.digest(bundle.getContent()));
+            }
+            task.ensureNotCancelled();
+        } catch (Throwable t) {
+            listener.onFailure(t);
+            return;
+        }
+        probe(clusterState, bundle, new ActionListener<Map<String, DeployProbeResponse>>() {
+            @Override
+            public void onResponse(Map<String, DeployProbeResponse> probeResponses) {
+                try {
+                    transfer(clusterState, bundle, task, probeResponses, resources, listener);
+                } catch (Throwable t) {
+                    listener.onFailure(t);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * Ask all nodes whether they already hold the bundle with the digest of the request.
+     * Nodes that do not answer are treated as not holding the bundle.
+     */
+    private void probe(ClusterState clusterState, DeployRequest request,
+                       final ActionListener<Map<String, DeployProbeResponse>> listener) {
+        final Map<String, DeployProbeResponse> probeResponses = new ConcurrentHashMap<>();
+        final AtomicInteger pending = new AtomicInteger(request.nodesIds().length);
+        if (pending.get() == 0) {
+            listener.onResponse(probeResponses);
+            return;
+        }
+        DeployProbeRequest probeRequest = new DeployProbeRequest(request.getName(), request.getDigest(), deltaEnabled);
+        if (request.isShared() && request.getFile() != null) {
+            probeRequest.setSharedPath(request.getFile().getAbsolutePath(), request.getFile().length());
+        }
+        TransportRequestOptions options = TransportRequestOptions.options().withTimeout(chunkTimeout);
+        for (final String nodeId : request.nodesIds()) {
+            DiscoveryNode node = clusterState.nodes().get(nodeId);
+            if (node == null) {
+                if (pending.decrementAndGet() == 0) {
+                    listener.onResponse(probeResponses);
+                }
+                continue;
+            }
+            transportService.sendRequest(node, PROBE_ACTION_NAME, probeRequest, options,
+                    new BaseTransportResponseHandler<DeployProbeResponse>() {
+                        @Override
+                        public DeployProbeResponse newInstance() {
+                            return new DeployProbeResponse();
+                        }
+
+                        @Override
+                        public void handleResponse(DeployProbeResponse response) {
+                            probeResponses.put(nodeId, response);
+                            if (pending.decrementAndGet() == 0) {
+                                listener.onResponse(probeResponses);
+                            }
+                        }
+
+                        @Override
+                        public void handleException(TransportException exp) {
+                            logger.warn("probe failed on node {}", exp, nodeId);
+                            if (pending.decrementAndGet() == 0) {
+                                listener.onResponse(probeResponses);
+                            }
+                        }
+
+                        @Override
+                        public String executor() {
+                            return TRANSFER_THREAD_POOL;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Decide for each node which payload it needs: nothing, the path on shared storage, a delta against
+     * the bundle it has installed, or the full bundle. Large payloads are transferred in chunks ahead of the deploy request.
+     * Bundles held for pulling nodes are registered in the resources, to be released after the deploy.
+     */
+    private void transfer(ClusterState clusterState, final DeployRequest request, final DeployTask task,
+                          Map<String, DeployProbeResponse> probeResponses, List<Releasable> resources,
+                          final ActionListener<Void> listener) throws IOException {
+        task.setPhase(DeployTask.TRANSFER);
+        final BytesReference content = request.getContent();
+        final Map<String, DeployNodePlan> plans = new ConcurrentHashMap<>();
+        // payloads by base digest, the full bundle is under the empty key
+        Map<String, List<DiscoveryNode>> groups = new HashMap<>();
+        Map<String, BytesReference> payloads = new HashMap<>();
+        payloads.put("", content);
+        int shared = 0;
+        for (String nodeId : request.nodesIds()) {
+            DiscoveryNode node = clusterState.nodes().get(nodeId);
+            if (node == null) {
+                continue;
+            }
+            DeployProbeResponse probeResponse = probeResponses.get(nodeId);
+            if (probeResponse != null && probeResponse.isPresent()) {
+                plans.put(nodeId, DeployNodePlan.present());
+                continue;
+            }
+            if (probeResponse != null && probeResponse.isShared()) {
+                plans.put(nodeId, DeployNodePlan.shared(request.getFile().getAbsolutePath()));
+                shared++;
+                continue;
+            }
+            String key = "";
+            if (probeResponse != null && probeResponse.getBaseDigest() != null) {
+                String baseDigest = probeResponse.getBaseDigest();
+                if (!payloads.containsKey(baseDigest)) {
+                    payloads.put(baseDigest, createDelta(request.getName(), content, probeResponse.getManifest(),
+                            resources));
+                }
+                if (payloads.get(baseDigest) != null) {
+                    key = baseDigest;
+                }
+            }
+            if (!groups.containsKey(key)) {
+                groups.put(key, new ArrayList<DiscoveryNode>());
+            }
+            groups.get(key).add(node);
+        }
+        int deltas = 0;
+        for (Map.Entry<String, List<DiscoveryNode>> group : groups.entrySet()) {
+            if (!group.getKey().isEmpty()) {
+                deltas += group.getValue().size();
+            }
+        }
+        logger.info("{}: {} of {} nodes hold digest {}, {} read it from shared storage, {} receive a delta",
+                request.getName(), plans.size() - shared, request.nodesIds().length, request.getDigest(), shared,
+                deltas);
+        request.setPlans(plans);
+        final AtomicInteger pending = new AtomicInteger(groups.size() + 1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final ActionListener<Void> groupListener = new ActionListener<Void>() {
+            @Override
+            public void onResponse(Void aVoid) {
+                if (pending.decrementAndGet() == 0) {
+                    if (failure.get() != null) {
+                        listener.onFailure(failure.get());
+                    } else {
+                        listener.onResponse(null);
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                failure.compareAndSet(null, e);
+                onResponse(null);
+            }
+        };
+        for (Map.Entry<String, List<DiscoveryNode>> group : groups.entrySet()) {
+            final String baseDigest = group.getKey().isEmpty() ? null : group.getKey();
+            final BytesReference payload = payloads.get(group.getKey());
+            final List<DiscoveryNode> nodes = group.getValue();
+            if (payload.length() <= chunkSize) {
+                for (DiscoveryNode node : nodes) {
+                    plans.put(node.id(), DeployNodePlan.inline(baseDigest, payload));
+                }
+                groupListener.onResponse(null);
+                continue;
+            }
+            final String transferId = Strings.randomBase64UUID();
+            if (pull) {
+                sources.put(transferId, new Tuple<>(payload, task));
+                resources.add(new Releasable() {
+                    @Override
+                    public void close() {
+                        sources.remove(transferId);
+                    }
+                });
+                for (DiscoveryNode node : nodes) {
+                    plans.put(node.id(), DeployNodePlan.fetch(baseDigest, transferId, payload.length(),
+                            clusterState.nodes().localNodeId()));
+                }
+                groupListener.onResponse(null);
+                continue;
+            }
+            List<DeployRoute> routes = DeployRelayTree.build(nodes,
+                    DeployRelayTree.fanOut(nodes.size(), relayFanOut, relayMaxDirect), relayAttribute,
+                    clusterState.nodes().localNodeId());
+            DeployChunkSender sender = new DeployChunkSender(transportService,
+                    injector.getInstance(DeployThrottle.class), transferId, task, request.getName(),
+                    payload, chunkSize, maxOutstandingChunks, chunkTimeout);
+            sender.send(clusterState.nodes(), routes, new ActionListener<Void>() {
+                @Override
+                public void onResponse(Void aVoid) {
+                    for (DiscoveryNode node : nodes) {
+                        plans.put(node.id(), DeployNodePlan.transfer(baseDigest, transferId, payload.length()));
+                    }
+                    groupListener.onResponse(null);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    groupListener.onFailure(e);
+                }
+            });
+        }
+        groupListener.onResponse(null);
+    }
+
+    /**
+     * Create a delta in a file, which is removed after the deploy, and map it.
+     *
+     * @return the delta, or null if the bundle can not be read as a zip file, or if most of the bundle
+     * has changed, so rebuilding from a delta is not worth it. The full bundle is sent then.
+     */
+    private BytesReference createDelta(String name, BytesReference content, DeployManifest base,
+                                       List<Releasable> resources) throws IOException {
+        Files.createDirectories(deltaDir.toPath());
+        final File file = File.createTempFile(name + "-", ".delta", deltaDir);
+        resources.add(new Releasable() {
+            @Override
+            public void close() {
+                if (!file.delete()) {
+                    logger.warn("can not delete {}", file.getAbsolutePath());
+                }
+            }
+        });
+        try {
+            if (!DeployDelta.create(content, base, file) || file.length() >= content.length() / 2) {
+                return null;
+            }
+        } catch (IOException e) {
+            logger.warn("{}: can not create delta, sending the full bundle", e, name);
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new ChannelBufferBytesReference(ChannelBuffers.wrappedBuffer(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+        }
     }
 
     @Override
@@ -92,57 +708,310 @@ public class TransportDeployAction extends TransportNodesAction<DeployRequest, D
     protected DeployNodeResponse nodeOperation(DeployNodeRequest request) throws ElasticsearchException {
         DeployService deployService = injector.getInstance(DeployService.class);
         DeployNodeResponse response = new DeployNodeResponse(clusterService.localNode());
+        if (request.getRequest().getRead() && request.getRequest().getTaskId() != null) {
+            DeployTaskService taskService = injector.getInstance(DeployTaskService.class);
+            String taskId = request.getRequest().getTaskId();
+            DeployTask task = request.getRequest().getCancel() ? taskService.cancel(taskId) : taskService.get(taskId);
+            response.setTask(task != null ? task : DeployTask.unknown(taskId));
+            return response;
+        }
         if (request.getRequest().getRead()) {
+            String name = request.getRequest().getName();
+            if (name != null && request.getRequest().getActivate()) {
+                try {
+                    // activated, and passivated after the idle timeout unless another caller acquires it
+                    deployService.acquire(name);
+                    deployService.release(name);
+                } catch (IOException e) {
+                    throw new ElasticsearchException("failed to activate " + name, e);
+                }
+            }
+            if (name != null && request.getRequest().getReadyTimeout() != null) {
+                awaitReady(name, request.getRequest().getReadyTimeout());
+            }
             Map<String, Object> m = new HashMap<>();
             Map<String, Plugin> plugins = deployService.getRegistry().getPlugins();
             for (String key : plugins.keySet()) {
-                m.put(key, plugins.get(key));
+                // plugin objects can not be serialized
+                m.put(key, plugins.get(key).toString());
             }
             response.setPlugins(m);
+            Map<String, Object> states = new HashMap<>();
+            for (Map.Entry<String, DeployRegistry.State> entry : deployService.getRegistry().getStates().entrySet()) {
+                states.put(entry.getKey(), entry.getValue().toString());
+            }
+            response.setStates(states);
+            response.setThrottleTimeInNanos(injector.getInstance(DeployThrottle.class).getThrottleTimeInNanos());
             return response;
         }
-        String name = request.getRequest().getName();
+        DeployTaskService taskService = injector.getInstance(DeployTaskService.class);
+        String taskId = request.getRequest().getTaskId();
+        DeployTask task = taskId != null ? taskService.register(taskId, taskName(request.getRequest())) :
+                new DeployTask(null, taskName(request.getRequest()));
+        if (request.getRequest().isBatch()) {
+            return installBatch(request, response, task);
+        }
+        try {
+            boolean ready = install(request.getRequest(), request.getPlan(), request.getRequest().getWaveSize() > 0, task);
+            if (ready) {
+                task.done();
+            } else {
+                task.fail(new ElasticsearchException(request.getRequest().getName() + " is not ready"));
+            }
+            response.setSuccess(ready);
+        } catch (Exception e) {
+            task.fail(e);
+            throw new ElasticsearchException(e.getMessage(), e);
+        }
+        return response;
+    }
+
+    /**
+     * Install the bundles of a batch in parallel, with at most as many workers as the bundle pool has threads.
+     * The thread of the node operation installs bundles, too, so the batch makes progress even if the pool
+     * is busy with other batches. A failed bundle does not fail the others.
+     */
+    private DeployNodeResponse installBatch(final DeployNodeRequest request, DeployNodeResponse response,
+                                            final DeployTask task) {
+        final List<DeployRequest> bundles = request.getRequest().getBundles();
+        final boolean verifyStarted = request.getRequest().getWaveSize() > 0;
+        final AtomicReferenceArray<Throwable> failures = new AtomicReferenceArray<>(bundles.size());
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(bundles.size());
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < bundles.size()) {
+                    try {
+                        if (!install(bundles.get(i), request.getPlan(i), verifyStarted, task)) {
+                            failures.set(i, new ElasticsearchException(bundles.get(i).getName() + " is not ready"));
+                        }
+                    } catch (Throwable t) {
+                        failures.set(i, t);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }
+        };
+        int workers = Math.min(threadPool.info(BUNDLE_THREAD_POOL).getMax(), bundles.size());
+        List<FutureTask<Void>> futures = new ArrayList<>();
+        for (int i = 1; i < workers; i++) {
+            FutureTask<Void> future = new FutureTask<>(worker, null);
+            try {
+                threadPool.executor(BUNDLE_THREAD_POOL).execute(future);
+                futures.add(future);
+            } catch (EsRejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+        // a worker which did not start yet has nothing left to do, wait for the bundles of running workers
+        for (FutureTask<Void> future : futures) {
+            future.cancel(false);
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.fail(e);
+            throw new ElasticsearchException("interrupted while deploying " + task.getName(), e);
+        }
+        List<DeployBundleResponse> results = new ArrayList<>();
+        boolean success = true;
+        for (int i = 0; i < bundles.size(); i++) {
+            String name = bundles.get(i).getName();
+            Throwable t = failures.get(i);
+            if (t == null) {
+                results.add(new DeployBundleResponse(name, true, null));
+            } else {
+                logger.error("failed to deploy {}", t, name);
+                results.add(new DeployBundleResponse(name, false,
+                        t.getMessage() != null ? t.getMessage() : t.getClass().getName()));
+                success = false;
+            }
+        }
+        if (success) {
+            task.done();
+        } else {
+            task.fail(new ElasticsearchException("failed to deploy some of " + task.getName()));
+        }
+        response.setBundles(results);
+        response.setSuccess(success);
+        return response;
+    }
+
+    /**
+     * Install a bundle on this node.
+     *
+     * @param bundle the request for the bundle
+     * @param plan how the bundle gets to this node
+     * @param verifyStarted true if the plugin must be ready and its services started afterwards
+     * @param task the task
+     * @return false if the plugin must be ready, but it is not
+     * @throws Exception if the bundle can not be installed
+     */
+    private boolean install(DeployRequest bundle, DeployNodePlan plan, boolean verifyStarted, DeployTask task)
+            throws Exception {
+        DeployService deployService = injector.getInstance(DeployService.class);
+        String name = bundle.getName();
         if (name == null) {
             throw new ElasticsearchException("no name given");
         }
-        String path = request.getRequest().getPath();
+        String path = bundle.getPath();
         if (path == null) {
             path = name;
         }
         // add .zip suffix if appropriate
-        String contentType = request.getRequest().getContentType();
+        String contentType = bundle.getContentType();
         if ("application/zip".equals(contentType) && !path.endsWith(".zip")) {
             path = path + ".zip";
         }
-        BytesReference content = request.getRequest().getContent();
-        if (content == null || content.length() == 0) {
+        BytesReference content = plan.getContent();
+        String digest = bundle.getDigest();
+        if (!plan.isPresent() && plan.getSharedPath() == null && plan.getTransferId() == null &&
+                (content == null || content.length() == 0)) {
             throw new ElasticsearchException("no content in request");
         }
-        File dir = new File(environment.pluginsFile().toFile(),
-                DeployPlugin.NAME + File.separator + "plugins" + File.separator + name);
-        try {
-            if (dir.exists()) {
-                deleteFiles(dir.toPath());
-            }
-            if (!dir.mkdirs()) {
-                logger.warn("unable to make directory: {}", dir.getAbsolutePath());
+        // do not replace a plugin while it is loading or starting, for example at node start
+        DeployRegistry.State state = deployService.getRegistry().getState(name);
+        if (state != null && !state.isFinal()) {
+            state = awaitReady(name, bundle.getReadyTimeout() != null ? bundle.getReadyTimeout() : readyTimeout);
+            if (!state.isFinal()) {
+                throw new ElasticsearchException(name + " is still " + state);
             }
-            // clear directory from previous files
-            File targetFile = new File(dir, new File(path).getName());
+        }
+        DeployStore store = injector.getInstance(DeployStore.class);
+        File dir = getPluginDir(name);
+        task.ensureNotCancelled();
+        if (digest != null && digest.equals(store.getInstalledDigest(dir))) {
+            logger.info("{} with digest {} is already installed, activating from disk", name, digest);
+            deployService.add(name, deployService.getInstalledVersion(name), task);
+            return isReady(name, verifyStarted, bundle.getReadyTimeout());
+        }
+        // stage the new version beside the installed one, which stays intact until the new one is complete
+        File staged = deployService.stage(name);
+        Path previous;
+        try {
+            File targetFile = new File(staged, new File(path).getName());
             logger.info("dir={} path={} target={}",
-                    dir.getAbsolutePath(), path,
+                    staged.getAbsolutePath(), path,
                     targetFile.getAbsolutePath());
-            FileOutputStream out = new FileOutputStream(targetFile);
-            Streams.copy(content.streamInput(), out);
-            out.close();
-            logger.info("received {} bytes", targetFile.length());
-            deployService.add(name, targetFile.getAbsoluteFile());
-            logger.info("{} deployed", name);
-            response.setSuccess(true);
+            if (plan.isPresent()) {
+                store.copy(digest, targetFile);
+                logger.info("copied {} bytes from store", targetFile.length());
+            } else {
+                task.setPhase(DeployTask.TRANSFER);
+                String baseDigest = plan.getBaseDigest();
+                File payloadFile = baseDigest != null ? new File(staged, targetFile.getName() + ".delta") : targetFile;
+                if (plan.getSharedPath() != null) {
+                    long startTime = System.nanoTime();
+                    Files.copy(new File(plan.getSharedPath()).toPath(), payloadFile.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                    task.addBytesWritten(payloadFile.length(), System.nanoTime() - startTime);
+                    logger.info("copied {} from shared storage", plan.getSharedPath());
+                } else if (plan.getSourceNodeId() != null) {
+                    DiscoveryNode source = clusterService.state().nodes().get(plan.getSourceNodeId());
+                    if (source == null) {
+                        throw new IOException("source node " + plan.getSourceNodeId() + " not found");
+                    }
+                    DeployChunkFetcher fetcher = new DeployChunkFetcher(transportService,
+                            injector.getInstance(DeployTransferService.class),
+                            injector.getInstance(DeployThrottle.class),
+                            chunkSize, maxOutstandingFetches, chunkTimeout);
+                    File file = fetcher.fetch(source, plan.getTransferId(), plan.getTransferLength(), task);
+                    Files.move(file.toPath(), payloadFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else if (plan.getTransferId() != null) {
+                    DeployTransferService transferService = injector.getInstance(DeployTransferService.class);
+                    long startTime = System.nanoTime();
+                    File file = transferService.finish(plan.getTransferId(), plan.getTransferLength());
+                    task.addBytesWritten(0L, System.nanoTime() - startTime);
+                    Files.move(file.toPath(), payloadFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    task.addThrottleTime(injector.getInstance(DeployThrottle.class).pause(content.length()));
+                    long startTime = System.nanoTime();
+                    injector.getInstance(DeployTransferService.class).write(payloadFile, content);
+                    task.addBytesWritten(content.length(), System.nanoTime() - startTime);
+                    task.addBytesReceived(content.length());
+                }
+                logger.info("received {} bytes", payloadFile.length());
+                if (baseDigest != null) {
+                    // the rebuilt bundle has the entries of the new bundle, checked against the manifest
+                    // of the delta, but not necessarily its bytes, so it is stored under its own digest
+                    DeployManifest manifest = DeployDelta.apply(store.getFile(baseDigest), payloadFile, targetFile);
+                    Files.delete(payloadFile.toPath());
+                    logger.info("rebuilt {} entries from delta against {}", manifest.getEntries().size(), baseDigest);
+                    if (digest != null) {
+                        store.put(digest, DeployStore.digest(targetFile), targetFile);
+                    }
+                } else if (digest != null) {
+                    String actual = DeployStore.digest(targetFile);
+                    if (!digest.equals(actual)) {
+                        throw new IOException("digest mismatch: expected " + digest + ", got " + actual);
+                    }
+                    store.put(digest, targetFile);
+                }
+            }
+            deployService.unpack(name, targetFile, task);
+            if (digest != null) {
+                store.setInstalledDigest(staged, digest);
+            }
+            task.ensureNotCancelled();
+            previous = deployService.activate(name, staged);
         } catch (Exception e) {
-            throw new ElasticsearchException(e.getMessage(), e);
+            deployService.remove(staged.toPath());
+            throw e;
         }
-        return response;
+        try {
+            // stops the running plugin and closes its class loader, only then the previous version can go
+            deployService.add(name, deployService.getInstalledVersion(name), task);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("failed to add {}, rolling back to {}", e, name, previous);
+            deployService.rollback(name, previous);
+            if (previous != null) {
+                try {
+                    deployService.add(name, previous.toFile());
+                } catch (IOException | RuntimeException e1) {
+                    logger.warn("failed to add previous version of {}", e1, name);
+                }
+            }
+            throw e;
+        }
+        if (previous != null) {
+            deployService.remove(previous);
+        }
+        logger.info("{} deployed", name);
+        return isReady(name, verifyStarted, bundle.getReadyTimeout());
+    }
+
+    private DeployRegistry.State awaitReady(String name, TimeValue timeout) {
+        try {
+            return injector.getInstance(DeployService.class).getRegistry().awaitReady(name, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchException("interrupted while waiting for " + name, e);
+        }
+    }
+
+    /**
+     * In a rolling deploy, check that the plugin is ready and its services are started, so the next wave
+     * starts only after this node serves the new version.
+     */
+    private boolean isReady(String name, boolean verifyStarted, TimeValue timeout) {
+        if (!verifyStarted) {
+            return true;
+        }
+        DeployRegistry.State state = awaitReady(name, timeout != null ? timeout : readyTimeout);
+        if (state != DeployRegistry.State.READY && state != DeployRegistry.State.INACTIVE) {
+            logger.warn("{} is {} after the deploy", name, state);
+            return false;
+        }
+        if (!injector.getInstance(DeployService.class).isStarted(name)) {
+            logger.warn("services of {} did not start", name);
+            return false;
+        }
+        return true;
     }
 
     @Override
@@ -150,19 +1019,184 @@ public class TransportDeployAction extends TransportNodesAction<DeployRequest, D
         return true;
     }
 
-    private void deleteFiles(Path directory) throws IOException {
-        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                Files.delete(file);
-                return FileVisitResult.CONTINUE;
+    /**
+     * Lists the deployed plugins on the read lane
+     */
+    class ReadAction extends TransportNodesAction<DeployRequest, DeployResponse, DeployNodeRequest, DeployNodeResponse> {
+
+        ReadAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                   ClusterService clusterService, TransportService transportService,
+                   ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver) {
+            super(settings, READ_ACTION_NAME, clusterName, threadPool, clusterService, transportService,
+                    actionFilters, indexNameExpressionResolver, DeployRequest.class, DeployNodeRequest.class,
+                    READ_THREAD_POOL);
+        }
+
+        @Override
+        protected DeployResponse newResponse(DeployRequest request, AtomicReferenceArray nodesResponses) {
+            return TransportDeployAction.this.newResponse(request, nodesResponses);
+        }
+
+        @Override
+        protected DeployNodeRequest newNodeRequest(String nodeId, DeployRequest request) {
+            return TransportDeployAction.this.newNodeRequest(nodeId, request);
+        }
+
+        @Override
+        protected DeployNodeResponse newNodeResponse() {
+            return TransportDeployAction.this.newNodeResponse();
+        }
+
+        @Override
+        protected DeployNodeResponse nodeOperation(DeployNodeRequest request) {
+            return TransportDeployAction.this.nodeOperation(request);
+        }
+
+        @Override
+        protected boolean accumulateExceptions() {
+            return TransportDeployAction.this.accumulateExceptions();
+        }
+    }
+
+    class ProbeTransportHandler implements TransportRequestHandler<DeployProbeRequest> {
+
+        @Override
+        public void messageReceived(DeployProbeRequest request, TransportChannel channel) throws Exception {
+            // the digest names a file in the store
+            DeployStore.checkDigest(request.getDigest());
+            DeployStore store = injector.getInstance(DeployStore.class);
+            String installedDigest = store.getInstalledDigest(getPluginDir(request.getName()));
+            boolean present = store.contains(request.getDigest()) || request.getDigest().equals(installedDigest);
+            File sharedFile = request.getSharedPath() != null ? new File(request.getSharedPath()) : null;
+            // the digest of a bundle on shared storage is verified when it is installed
+            if (!present && sharedFile != null && sharedFile.isFile() && sharedFile.canRead() &&
+                    sharedFile.length() == request.getLength()) {
+                channel.sendResponse(new DeployProbeResponse(false).setShared(true));
+                return;
+            }
+            if (!present && request.isDelta() && store.contains(installedDigest)) {
+                try (ZipFile zipFile = new ZipFile(store.getFile(installedDigest))) {
+                    channel.sendResponse(new DeployProbeResponse(installedDigest, DeployManifest.of(zipFile)));
+                    return;
+                } catch (IOException e) {
+                    logger.debug("installed bundle {} is not a zip file", installedDigest);
+                }
+            }
+            channel.sendResponse(new DeployProbeResponse(present));
+        }
+    }
+
+    class ChunkTransportHandler implements TransportRequestHandler<DeployChunkRequest> {
+
+        @Override
+        public void messageReceived(DeployChunkRequest request, TransportChannel channel) throws Exception {
+            DeployTransferService transferService = injector.getInstance(DeployTransferService.class);
+            DeployTask task = injector.getInstance(DeployTaskService.class)
+                    .register(request.getTaskId(), request.getName());
+            if (task.isCancelled()) {
+                transferService.abort(request.getTransferId());
+                task.ensureNotCancelled();
+            }
+            task.setPhase(DeployTask.TRANSFER);
+            if (DeployChunkRequest.checksum(request.getContent()) != request.getChecksum()) {
+                transferService.abort(request.getTransferId());
+                throw new ElasticsearchException("checksum mismatch in chunk at offset " + request.getOffset() +
+                        " of transfer " + request.getTransferId() + " for " + request.getName());
             }
+            task.addThrottleTime(injector.getInstance(DeployThrottle.class).pause(request.getContent().length()));
+            long startTime = System.nanoTime();
+            long received = transferService.receive(request.getTransferId(), request.getOffset(), request.getContent());
+            task.addBytesWritten(request.getContent().length(), System.nanoTime() - startTime);
+            task.addBytesReceived(request.getContent().length());
+            if (request.getRoutes().isEmpty()) {
+                channel.sendResponse(new DeployChunkResponse(received));
+            } else {
+                relay(request, received, channel);
+            }
+        }
+    }
 
-            @Override
-            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                Files.delete(dir);
-                return FileVisitResult.CONTINUE;
+    class FetchTransportHandler implements TransportRequestHandler<DeployFetchRequest> {
+
+        @Override
+        public void messageReceived(DeployFetchRequest request, TransportChannel channel) throws Exception {
+            Tuple<BytesReference, DeployTask> tuple = sources.get(request.getTransferId());
+            if (tuple == null) {
+                throw new ElasticsearchException("no source for transfer " + request.getTransferId());
             }
-        });
+            BytesReference source = tuple.v1();
+            if (request.getOffset() < 0 || request.getOffset() + request.getLength() > source.length()) {
+                throw new ElasticsearchException("chunk at offset " + request.getOffset() + " of length " +
+                        request.getLength() + " is out of range for transfer " + request.getTransferId());
+            }
+            BytesReference chunk = source.slice((int) request.getOffset(), request.getLength());
+            tuple.v2().addThrottleTime(injector.getInstance(DeployThrottle.class).pause(chunk.length()));
+            channel.sendResponse(new DeployFetchResponse(chunk, DeployChunkRequest.checksum(chunk)));
+        }
+    }
+
+    /**
+     * Forward a received chunk to the next nodes of the relay tree, and acknowledge it
+     * after all of them have acknowledged.
+     */
+    private void relay(DeployChunkRequest request, final long received, final TransportChannel channel) {
+        final List<DeployRoute> routes = request.getRoutes();
+        final AtomicInteger pending = new AtomicInteger(routes.size());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        TransportRequestOptions options = TransportRequestOptions.options().withTimeout(chunkTimeout);
+        for (final DeployRoute route : routes) {
+            DiscoveryNode node = clusterService.state().nodes().get(route.getNodeId());
+            if (node == null) {
+                failure.compareAndSet(null, new IllegalStateException("node " + route.getNodeId() + " not found"));
+                if (pending.decrementAndGet() == 0) {
+                    respond(channel, received, failure.get());
+                }
+                continue;
+            }
+            transportService.sendRequest(node, CHUNK_ACTION_NAME, request.forward(route.getChildren()), options,
+                    new BaseTransportResponseHandler<DeployChunkResponse>() {
+                        @Override
+                        public DeployChunkResponse newInstance() {
+                            return new DeployChunkResponse();
+                        }
+
+                        @Override
+                        public void handleResponse(DeployChunkResponse response) {
+                            if (pending.decrementAndGet() == 0) {
+                                respond(channel, received, failure.get());
+                            }
+                        }
+
+                        @Override
+                        public void handleException(TransportException exp) {
+                            failure.compareAndSet(null, exp);
+                            if (pending.decrementAndGet() == 0) {
+                                respond(channel, received, failure.get());
+                            }
+                        }
+
+                        @Override
+                        public String executor() {
+                            return ThreadPool.Names.SAME;
+                        }
+                    });
+        }
+    }
+
+    private void respond(TransportChannel channel, long received, Throwable failure) {
+        try {
+            if (failure != null) {
+                channel.sendResponse(failure);
+            } else {
+                channel.sendResponse(new DeployChunkResponse(received));
+            }
+        } catch (IOException e) {
+            logger.error("failed to send chunk response", e);
+        }
+    }
+
+    private File getPluginDir(String name) {
+        return new File(environment.pluginsFile().toFile(),
+                DeployPlugin.NAME + File.separator + "plugins" + File.separator + name);
     }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.module.deploy;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A delta between two versions of a plugin bundle.
+ *
+ * A delta is a zip file holding the entries that are new or changed in the new version,
+ * and a manifest of all entries of the new version. Entries that are missing in the manifest
+ * are removed. The new version is rebuilt from the old version and the delta. The rebuilt version has the
+ * entries of the new version, but not necessarily its bytes, so it has a digest of its own.
+ */
+public class DeployDelta {
+
+    public static final String MANIFEST_ENTRY = ".deploy-manifest";
+
+    private DeployDelta() {
+    }
+
+    /**
+     * Create a delta against an old version, and write it to a file.
+     *
+     * @param bundle the new version of the bundle
+     * @param base the manifest of the old version
+     * @param file the file for the delta
+     * @return true if the delta was written, false if the bundle is not a zip file
+     * @throws IOException if the delta can not be created
+     */
+    public static boolean create(BytesReference bundle, DeployManifest base, File file) throws IOException {
+        // first pass: find changed entries, without holding entry content in memory
+        DeployManifest target = new DeployManifest();
+        byte[] buffer = new byte[8192];
+        try (ZipInputStream in = new ZipInputStream(bundle.streamInput())) {
+            ZipEntry zipEntry;
+            while ((zipEntry = in.getNextEntry()) != null) {
+                if (zipEntry.isDirectory()) {
+                    continue;
+                }
+                CRC32 crc32 = new CRC32();
+                long size = 0L;
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    crc32.update(buffer, 0, len);
+                    size += len;
+                }
+                target.add(zipEntry.getName(), crc32.getValue(), size);
+            }
+        }
+        if (target.getEntries().isEmpty()) {
+            return false;
+        }
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, DeployManifest.Entry> entry : target.getEntries().entrySet()) {
+            if (!base.contains(entry.getKey(), entry.getValue().getCrc(), entry.getValue().getSize())) {
+                changed.add(entry.getKey());
+            }
+        }
+        // second pass: copy changed entries
+        try (ZipInputStream in = new ZipInputStream(bundle.streamInput());
+             ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            ZipEntry zipEntry;
+            while ((zipEntry = in.getNextEntry()) != null) {
+                if (changed.contains(zipEntry.getName())) {
+                    zipOut.putNextEntry(new ZipEntry(zipEntry.getName()));
+                    copy(in, zipOut, buffer);
+                    zipOut.closeEntry();
+                }
+            }
+            zipOut.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+            target.write(zipOut);
+            zipOut.closeEntry();
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild a new version of a bundle from the old version and a delta.
+     *
+     * @param base the old version
+     * @param delta the delta
+     * @param target the file for the new version
+     * @return the manifest of the new version
+     * @throws IOException if the new version can not be rebuilt
+     */
+    public static DeployManifest apply(File base, File delta, File target) throws IOException {
+        byte[] buffer = new byte[8192];
+        try (ZipFile baseZip = new ZipFile(base);
+             ZipFile deltaZip = new ZipFile(delta);
+             ZipOutputStream out = new ZipOutputStream(new FileOutputStream(target))) {
+            ZipEntry manifestEntry = deltaZip.getEntry(MANIFEST_ENTRY);
+            if (manifestEntry == null) {
+                throw new IOException("no manifest in delta");
+            }
+            DeployManifest manifest;
+            try (InputStream in = deltaZip.getInputStream(manifestEntry)) {
+                manifest = DeployManifest.read(in);
+            }
+            for (Map.Entry<String, DeployManifest.Entry> entry : manifest.getEntries().entrySet()) {
+                ZipFile zipFile = deltaZip;
+                ZipEntry zipEntry = deltaZip.getEntry(entry.getKey());
+                if (zipEntry == null) {
+                    zipFile = baseZip;
+                    zipEntry = baseZip.getEntry(entry.getKey());
+                }
+                if (zipEntry == null) {
+                    throw new IOException("entry " + entry.getKey() + " is neither in delta nor in base");
+                }
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                CRC32 crc32 = new CRC32();
+                long size;
+                try (InputStream in = zipFile.getInputStream(zipEntry)) {
+                    size = copy(in, new CheckedOutputStream(out, crc32), buffer);
+                }
+                out.closeEntry();
+                if (crc32.getValue() != entry.getValue().getCrc() || size != entry.getValue().getSize()) {
+                    throw new IOException("entry " + entry.getKey() + " does not match the manifest");
+                }
+            }
+            return manifest;
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        long size = 0L;
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+            size += len;
+        }
+        return size;
+    }
+
+    private static class CheckedOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private final CRC32 crc32;
+
+        CheckedOutputStream(OutputStream out, CRC32 crc32) {
+            this.out = out;
+            this.crc32 = crc32;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            crc32.update(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            crc32.update(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.module.deploy;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.xbib.elasticsearch.plugin.deploy.DeployPlugin;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Downloads plugin bundles from URLs on a dedicated executor, into a local cache.
+ *
+ * Interrupted HTTP downloads are resumed with range requests. Repeated downloads of the same URL
+ * are conditional requests, and the cached bundle is used if the server reports it as not modified.
+ * The cache keeps the most recently used bundles, like the bundle store. A bundle is not evicted
+ * while a download of it is held.
+ */
+public class DeployDownloadService extends AbstractComponent {
+
+    public static final String THREAD_POOL_NAME = "deploy_download";
+
+    private static final String ETAG = "etag";
+
+    private static final String LAST_MODIFIED = "last_modified";
+
+    private static final String DIGEST = "digest";
+
+    private final ThreadPool threadPool;
+
+    private final File dir;
+
+    private final int retries;
+
+    private final TimeValue timeout;
+
+    private final TimeValue retryDelay;
+
+    private final int maxBundles;
+
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    private final Map<String, Integer> holders = new HashMap<>();
+
+    @Inject
+    public DeployDownloadService(Settings settings, Environment environment, ThreadPool threadPool) {
+        super(settings);
+        this.threadPool = threadPool;
+        this.dir = new File(environment.pluginsFile().toFile(), DeployPlugin.NAME + File.separator + "downloads");
+        this.retries = settings.getAsInt("plugins.deploy.download.retries", 3);
+        this.timeout = settings.getAsTime("plugins.deploy.download.timeout", TimeValue.timeValueSeconds(60));
+        this.retryDelay = settings.getAsTime("plugins.deploy.download.retry_delay", TimeValue.timeValueSeconds(1));
+        this.maxBundles = settings.getAsInt("plugins.deploy.download.max_bundles", 10);
+    }
+
+    /**
+     * Download a bundle asynchronously. The download must be closed when the bundle is no longer needed.
+     *
+     * @param url the URL
+     * @param listener the listener for the downloaded bundle
+     */
+    public void download(final URL url, final ActionListener<Download> listener) {
+        threadPool.executor(THREAD_POOL_NAME).execute(new AbstractRunnable() {
+            @Override
+            protected void doRun() throws Exception {
+                listener.onResponse(download(url));
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                listener.onFailure(t);
+            }
+        });
+    }
+
+    private Download download(URL url) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("unable to make directory: " + dir.getAbsolutePath());
+        }
+        String key = DeployStore.digest(new BytesArray(url.toString()));
+        while (true) {
+            Object lock = new Object();
+            Object existing = locks.putIfAbsent(key, lock);
+            if (existing != null) {
+                lock = existing;
+            }
+            synchronized (lock) {
+                if (locks.get(key) != lock) {
+                    // removed by the download we waited for, take a new lock
+                    continue;
+                }
+                try {
+                    return download(url, key);
+                } finally {
+                    locks.remove(key, lock);
+                }
+            }
+        }
+    }
+
+    private Download download(URL url, String key) throws IOException {
+        File file = new File(dir, key);
+        File part = new File(dir, key + ".part");
+        IOException failure = null;
+        long delay = retryDelay.millis();
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while retrying download of " + url, e);
+                }
+                delay *= 2;
+            }
+            try {
+                String digest = fetch(url, file, part);
+                Download download = new Download(key, file, digest);
+                file.setLastModified(System.currentTimeMillis());
+                evict();
+                return download;
+            } catch (IOException e) {
+                logger.warn("download of {} failed, {} bytes so far, attempt {} of {}", e,
+                        url, part.length(), attempt + 1, retries + 1);
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Remove the least recently used bundles from the cache, but not the ones which are held or downloaded.
+     */
+    private void evict() {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().indexOf('.') < 0;
+            }
+        });
+        if (files == null || files.length <= maxBundles) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        int count = files.length;
+        synchronized (holders) {
+            for (int i = 0; i < files.length && count > maxBundles; i++) {
+                String key = files[i].getName();
+                if (holders.containsKey(key) || locks.containsKey(key)) {
+                    continue;
+                }
+                if (files[i].delete()) {
+                    if (!metaFile(files[i]).delete()) {
+                        logger.warn("can not delete {}", metaFile(files[i]).getAbsolutePath());
+                    }
+                    logger.debug("evicted download {}", key);
+                    count--;
+                }
+            }
+        }
+    }
+
+    private String fetch(URL url, File file, File part) throws IOException {
+        Properties meta = file.isFile() ? readMeta(file) : null;
+        Properties partMeta = part.isFile() ? readMeta(part) : null;
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout((int) timeout.millis());
+        connection.setReadTimeout((int) timeout.millis());
+        long offset = 0L;
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection http = (HttpURLConnection) connection;
+            if (meta != null && meta.getProperty(DIGEST) != null) {
+                if (meta.getProperty(ETAG) != null) {
+                    http.setRequestProperty("If-None-Match", meta.getProperty(ETAG));
+                }
+                if (meta.getProperty(LAST_MODIFIED) != null) {
+                    http.setRequestProperty("If-Modified-Since", meta.getProperty(LAST_MODIFIED));
+                }
+            }
+            String validator = partMeta != null ? partMeta.getProperty(ETAG, partMeta.getProperty(LAST_MODIFIED)) : null;
+            if (validator != null && part.length() > 0) {
+                http.setRequestProperty("Range", "bytes=" + part.length() + "-");
+                http.setRequestProperty("If-Range", validator);
+            }
+            int status = http.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && meta != null && meta.getProperty(DIGEST) != null) {
+                http.disconnect();
+                logger.info("{} not modified, using cached download", url);
+                return meta.getProperty(DIGEST);
+            } else if (status == HttpURLConnection.HTTP_PARTIAL) {
+                offset = part.length();
+                logger.info("resuming download of {} at {} bytes", url, offset);
+            } else if (status != HttpURLConnection.HTTP_OK) {
+                http.disconnect();
+                throw new IOException("HTTP status " + status + " for " + url);
+            }
+        }
+        if (offset == 0L) {
+            partMeta = new Properties();
+            if (connection.getHeaderField("ETag") != null) {
+                partMeta.setProperty(ETAG, connection.getHeaderField("ETag"));
+            }
+            if (connection.getHeaderField("Last-Modified") != null) {
+                partMeta.setProperty(LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+            }
+            writeMeta(part, partMeta);
+        }
+        long length = connection.getContentLengthLong();
+        try (InputStream in = connection.getInputStream();
+             OutputStream out = new FileOutputStream(part, offset > 0L)) {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        }
+        if (length >= 0L && part.length() != offset + length) {
+            throw new IOException("incomplete download of " + url + ": " + part.length() + " of " +
+                    (offset + length) + " bytes");
+        }
+        String digest = DeployStore.digest(part);
+        Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        partMeta.setProperty(DIGEST, digest);
+        writeMeta(file, partMeta);
+        Files.deleteIfExists(metaFile(part).toPath());
+        logger.info("downloaded {} bytes from {}", file.length(), url);
+        return digest;
+    }
+
+    private Properties readMeta(File file) throws IOException {
+        File metaFile = metaFile(file);
+        if (!metaFile.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(metaFile)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private void writeMeta(File file, Properties properties) throws IOException {
+        try (OutputStream out = new FileOutputStream(metaFile(file))) {
+            properties.store(out, null);
+        }
+    }
+
+    private static File metaFile(File file) {
+        return new File(file.getParentFile(), file.getName() + ".meta");
+    }
+
+    /**
+     * A downloaded bundle in the cache. The bundle stays in the cache while the download is not closed.
+     */
+    public class Download implements Releasable {
+
+        private final String key;
+
+        private final File file;
+
+        private final String digest;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Download(String key, File file, String digest) {
+            this.key = key;
+            this.file = file;
+            this.digest = digest;
+            synchronized (holders) {
+                Integer count = holders.get(key);
+                holders.put(key, count == null ? 1 : count + 1);
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                synchronized (holders) {
+                    Integer count = holders.get(key);
+                    if (count == null || count <= 1) {
+                        holders.remove(key);
+                    } else {
+                        holders.put(key, count - 1);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.module.deploy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The install index of a plugin directory. It lists the jars of the plugin in class path order, the plugin class
+ * and the jar which contains it, the bundle digest, and where the plugin settings are, so a plugin can be loaded
+ * without walking the directory and without trying each jar for the plugin class.
+ */
+public class DeployIndex {
+
+    static final String INDEX_FILE = ".index";
+
+    private final String path;
+
+    private final String classname;
+
+    private final URI jar;
+
+    private final List<URI> jars;
+
+    private final String digest;
+
+    private final String settings;
+
+    public DeployIndex(File dir, String classname, URI jar, List<URI> jars, String digest, String settings) {
+        this(dir.getAbsolutePath(), classname, jar, jars, digest, settings);
+    }
+
+    private DeployIndex(String path, String classname, URI jar, List<URI> jars, String digest, String settings) {
+        this.path = path;
+        this.classname = classname;
+        this.jar = jar;
+        this.jars = jars;
+        this.digest = digest;
+        this.settings = settings;
+    }
+
+    public String getClassname() {
+        return classname;
+    }
+
+    public URI getJar() {
+        return jar;
+    }
+
+    public List<URI> getJars() {
+        return jars;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return the location of the elasticsearch.yml of the plugin, or null if the plugin has none
+     */
+    public String getSettings() {
+        return settings;
+    }
+
+    /**
+     * Check if this index was written for a plugin directory.
+     *
+     * @param dir the plugin directory
+     * @param digest the digest of the installed bundle, or null
+     * @return true if the index belongs to the directory and the installed bundle
+     */
+    public boolean isValidFor(File dir, String digest) {
+        return path.equals(dir.getAbsolutePath()) && (digest == null ? this.digest == null : digest.equals(this.digest));
+    }
+
+    /**
+     * Read the index of a plugin directory.
+     *
+     * @param dir the plugin directory
+     * @return the index, or null if there is none
+     * @throws IOException if the index can not be read
+     */
+    public static DeployIndex read(File dir) throws IOException {
+        File file = new File(dir, INDEX_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        try {
+            int size = Integer.parseInt(properties.getProperty("jars", "0"));
+            List<URI> jars = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                jars.add(new URI(properties.getProperty("jars." + i)));
+            }
+            return new DeployIndex(properties.getProperty("path"), properties.getProperty("classname"),
+                    new URI(properties.getProperty("jar")), jars,
+                    properties.getProperty("digest"), properties.getProperty("settings"));
+        } catch (URISyntaxException | NumberFormatException | NullPointerException e) {
+            throw new IOException("invalid index " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Write the index into a plugin directory.
+     *
+     * @param dir the plugin directory
+     * @throws IOException if the index can not be written
+     */
+    public void write(File dir) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("path", path);
+        properties.setProperty("classname", classname);
+        properties.setProperty("jar", jar.toString());
+        properties.setProperty("jars", Integer.toString(jars.size()));
+        for (int i = 0; i < jars.size(); i++) {
+            properties.setProperty("jars." + i, jars.get(i).toString());
+        }
+        if (digest != null) {
+            properties.setProperty("digest", digest);
+        }
+        if (settings != null) {
+            properties.setProperty("settings", settings);
+        }
+        try (OutputStream out = new FileOutputStream(new File(dir, INDEX_FILE))) {
+            properties.store(out, null);
+        }
+    }
+}
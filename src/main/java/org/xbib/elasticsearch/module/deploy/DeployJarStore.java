@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.module.deploy;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.xbib.elasticsearch.plugin.deploy.DeployPlugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A node-local store of the jars in extracted plugin bundles, addressed by CRC-32, size and SHA-256 digest.
+ *
+ * Plugin directories hard-link the jars of the store, so a jar which is bundled by several plugins, or by
+ * several versions of a plugin, is written to disk only once. Jars which are no longer linked from
+ * any plugin directory are removed in the background.
+ */
+public class DeployJarStore extends AbstractLifecycleComponent<DeployJarStore> {
+
+    private final File dir;
+
+    private final boolean enabled;
+
+    private final TimeValue gcInterval;
+
+    private final ThreadPool threadPool;
+
+    // CRC-32 and size, as known from the zip directory before extracting, to the stored jar
+    private final Map<String, File> index = new ConcurrentHashMap<>();
+
+    @Inject
+    public DeployJarStore(Settings settings, Environment environment, ThreadPool threadPool) {
+        super(settings);
+        this.dir = new File(environment.pluginsFile().toFile(), DeployPlugin.NAME + File.separator + "jars");
+        this.enabled = settings.getAsBoolean("plugins.deploy.jars.shared", true);
+        this.gcInterval = settings.getAsTime("plugins.deploy.jars.gc_interval", TimeValue.timeValueMinutes(10));
+        this.threadPool = threadPool;
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        if (!enabled) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String[] parts = file.getName().split("-");
+                if (parts.length == 3 && file.getName().endsWith(".jar")) {
+                    index.put(parts[0] + "-" + parts[1], file);
+                }
+            }
+        }
+        logger.debug("found {} stored jars", index.size());
+        threadPool.schedule(gcInterval, ThreadPool.Names.GENERIC, new GarbageCollector());
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+
+    /**
+     * @param entry a zip entry
+     * @return true if the entry is a jar which can be shared by the store
+     */
+    public boolean isShared(ZipEntry entry) {
+        return enabled && entry.getName().endsWith(".jar") && entry.getCrc() != -1 && entry.getSize() != -1;
+    }
+
+    /**
+     * Find a stored jar with the same content as a zip entry. The entry is inflated and hashed, but not written.
+     *
+     * @param zipFile the zip file
+     * @param entry the entry
+     * @param buffer a buffer for reading the entry
+     * @return the stored jar, or null
+     * @throws IOException if the entry can not be read
+     */
+    public File find(ZipFile zipFile, ZipEntry entry, byte[] buffer) throws IOException {
+        File file = index.get(key(entry));
+        if (file == null) {
+            return null;
+        }
+        MessageDigest messageDigest = DeployStore.newDigest();
+        try (InputStream in = zipFile.getInputStream(entry)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, len);
+            }
+        }
+        return file.getName().equals(name(entry, DeployStore.toHex(messageDigest.digest()))) ? file : null;
+    }
+
+    /**
+     * Link a stored jar into a plugin directory.
+     *
+     * @param jar the stored jar
+     * @param target the file in the plugin directory
+     * @return false if the jar was removed meanwhile, or the file system does not support links
+     */
+    public boolean link(File jar, File target) {
+        try {
+            Files.createLink(target.toPath(), jar.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("can not link {} to {}", e, jar, target);
+            return false;
+        }
+    }
+
+    /**
+     * Add a jar which was extracted into a plugin directory to the store.
+     *
+     * @param entry the zip entry of the jar
+     * @param digest the SHA-256 digest of the jar
+     * @param file the extracted jar
+     */
+    public void add(ZipEntry entry, String digest, File file) {
+        File jar = new File(dir, name(entry, digest));
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("unable to make directory: " + dir.getAbsolutePath());
+            }
+            Files.createLink(jar.toPath(), file.toPath());
+        } catch (FileAlreadyExistsException e) {
+            // added concurrently by another bundle
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("can not add {} to jar store", e, file);
+            return;
+        }
+        if (index.putIfAbsent(key(entry), jar) == null) {
+            logger.debug("stored jar {}", jar.getName());
+        }
+    }
+
+    /**
+     * Remove stored jars which are not linked from any plugin directory.
+     *
+     * @return the number of removed jars
+     */
+    public int gc() {
+        int removed = 0;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return removed;
+        }
+        for (File file : files) {
+            try {
+                Object links = Files.getAttribute(file.toPath(), "unix:nlink");
+                if (links instanceof Integer && (Integer) links <= 1) {
+                    String[] parts = file.getName().split("-");
+                    if (parts.length == 3) {
+                        index.remove(parts[0] + "-" + parts[1], file);
+                    }
+                    Files.deleteIfExists(file.toPath());
+                    removed++;
+                }
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                logger.debug("link count not supported, can not remove unreferenced jars", e);
+                break;
+            } catch (IOException e) {
+                logger.warn("can not check {}", e, file);
+            }
+        }
+        if (removed > 0) {
+            logger.info("removed {} unreferenced jars", removed);
+        }
+        return removed;
+    }
+
+    private static String key(ZipEntry entry) {
+        return Long.toHexString(entry.getCrc()) + "-" + entry.getSize();
+    }
+
+    private static String name(ZipEntry entry, String digest) {
+        return key(entry) + "-" + digest + ".jar";
+    }
+
+    class GarbageCollector extends AbstractRunnable {
+
+        @Override
+        protected void doRun() throws Exception {
+            gc();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            logger.warn("failed to remove unreferenced jars", t);
+        }
+
+        @Override
+        public void onAfter() {
+            if (lifecycle.started()) {
+                threadPool.schedule(gcInterval, ThreadPool.Names.GENERIC, this);
+            }
+        }
+    }
+}
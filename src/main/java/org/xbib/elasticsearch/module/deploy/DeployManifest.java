@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.module.deploy;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The list of file entries of a plugin bundle, with CRC-32 checksum and size of each entry
+ */
+public class DeployManifest implements Streamable {
+
+    private final Map<String, Entry> entries;
+
+    public DeployManifest() {
+        this.entries = new LinkedHashMap<>();
+    }
+
+    public DeployManifest add(String name, long crc, long size) {
+        entries.put(name, new Entry(crc, size));
+        return this;
+    }
+
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public Map<String, Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Check if an entry is contained in this manifest with the same checksum and size.
+     *
+     * @param name the entry name
+     * @param crc the checksum
+     * @param size the size
+     * @return true if the entry is unchanged
+     */
+    public boolean contains(String name, long crc, long size) {
+        Entry entry = entries.get(name);
+        return entry != null && entry.crc == crc && entry.size == size;
+    }
+
+    /**
+     * Create a manifest from the central directory of a zip file.
+     *
+     * @param zipFile the zip file
+     * @return the manifest
+     */
+    public static DeployManifest of(ZipFile zipFile) {
+        DeployManifest manifest = new DeployManifest();
+        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+        while (zipEntries.hasMoreElements()) {
+            ZipEntry zipEntry = zipEntries.nextElement();
+            if (!zipEntry.isDirectory()) {
+                manifest.add(zipEntry.getName(), zipEntry.getCrc(), zipEntry.getSize());
+            }
+        }
+        return manifest;
+    }
+
+    public static DeployManifest read(InputStream in) throws IOException {
+        DeployManifest manifest = new DeployManifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] s = line.split(" ", 3);
+            if (s.length != 3) {
+                throw new IOException("invalid manifest line: " + line);
+            }
+            manifest.add(s[2], Long.parseLong(s[0], 16), Long.parseLong(s[1]));
+        }
+        return manifest;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            writer.write(Long.toHexString(entry.getValue().crc) + " " + entry.getValue().size + " " + entry.getKey() + "\n");
+        }
+        writer.flush();
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        entries.clear();
+        int size = in.readVInt();
+        for (int i = 0; i < size; i++) {
+            add(in.readString(), in.readLong(), in.readVLong());
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeLong(entry.getValue().crc);
+            out.writeVLong(entry.getValue().size);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DeployManifest && entries.equals(((DeployManifest) o).entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return entries.hashCode();
+    }
+
+    public static class Entry {
+
+        private final long crc;
+
+        private final long size;
+
+        Entry(long crc, long size) {
+            this.crc = crc;
+            this.size = size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && crc == ((Entry) o).crc && size == ((Entry) o).size;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (crc ^ size);
+        }
+    }
+}
@@ -23,6 +23,12 @@ public class DeployModule extends AbstractModule {
     protected void configure() {
         bind(DeployRegistry.class).asEagerSingleton();
         bind(DeployService.class).asEagerSingleton();
+        bind(DeployTransferService.class).asEagerSingleton();
+        bind(DeployStore.class).asEagerSingleton();
+        bind(DeployDownloadService.class).asEagerSingleton();
+        bind(DeployTaskService.class).asEagerSingleton();
+        bind(DeployThrottle.class).asEagerSingleton();
+        bind(DeployJarStore.class).asEagerSingleton();
     }
 
 }
@@ -16,13 +16,15 @@
 package org.xbib.elasticsearch.module.deploy;
 
 import org.elasticsearch.common.inject.Injector;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.plugins.Plugin;
 
-import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Registry for managing plugins
+ * Registry for managing plugins. Plugins of a batch deploy are added concurrently.
  */
 public class DeployRegistry {
 
@@ -30,9 +32,12 @@ public class DeployRegistry {
 
     private final Map<String, Injector> pluginInjectors;
 
+    private final Map<String, State> states;
+
     public DeployRegistry() {
-        this.plugins = new HashMap<>();
-        this.pluginInjectors = new HashMap<>();
+        this.plugins = new ConcurrentHashMap<>();
+        this.pluginInjectors = new ConcurrentHashMap<>();
+        this.states = new ConcurrentHashMap<>();
     }
 
     public void addPlugin(String name, Plugin plugin, Injector injector) {
@@ -45,6 +50,7 @@ public class DeployRegistry {
     }
 
     public Plugin removePlugin(String name) {
+        pluginInjectors.remove(name);
         return plugins.remove(name);
     }
 
@@ -56,8 +62,69 @@ public class DeployRegistry {
         return pluginInjectors.get(name);
     }
 
+    public synchronized void setState(String name, State state) {
+        states.put(name, state);
+        notifyAll();
+    }
+
+    /**
+     * @param name the plugin name
+     * @return the readiness of the plugin, or null if the plugin is not known
+     */
+    public State getState(String name) {
+        return states.get(name);
+    }
+
+    public Map<String, State> getStates() {
+        return states;
+    }
+
+    /**
+     * Wait until a plugin is ready, failed, or inactive.
+     *
+     * @param name the plugin name
+     * @param timeout the time to wait at most
+     * @return the state of the plugin when the wait ended, or null if the plugin is not known
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized State awaitReady(String name, TimeValue timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout.millis();
+        State state = states.get(name);
+        while (state != null && !state.isFinal()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0L) {
+                break;
+            }
+            wait(remaining);
+            state = states.get(name);
+        }
+        return state;
+    }
+
     public String toString() {
         return plugins.toString();
     }
 
+    /**
+     * The readiness of a plugin on this node
+     */
+    public enum State {
+
+        LOADING, STARTING, READY, FAILED,
+
+        /**
+         * A lazy plugin which is registered, but not loaded until it is acquired
+         */
+        INACTIVE;
+
+        public boolean isFinal() {
+            return this == READY || this == FAILED || this == INACTIVE;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
 }
@@ -16,29 +16,58 @@
 package org.xbib.elasticsearch.module.deploy;
 
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.cache.recycler.PageCacheRecycler;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.component.Lifecycle;
 import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.inject.Injector;
 import org.elasticsearch.common.inject.Module;
-import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.recycler.Recycler;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.node.service.NodeService;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestFilter;
+import org.elasticsearch.rest.RestFilterChain;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.xbib.classloader.jar.ZipDirectory;
 import org.xbib.classloader.uri.URIClassLoader;
 import org.xbib.elasticsearch.plugin.deploy.DeployPlugin;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -46,7 +75,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 import static org.elasticsearch.common.settings.Settings.settingsBuilder;
@@ -56,6 +97,17 @@ import static org.elasticsearch.common.settings.Settings.settingsBuilder;
  */
 public class DeployService extends AbstractLifecycleComponent<DeployService> implements DeployableComponent<DeployService> {
 
+    public static final String UNPACK_THREAD_POOL = "deploy_unpack";
+
+    public static final String STARTUP_THREAD_POOL = "deploy_startup";
+
+    /**
+     * The prefix of the IDs of the tasks which add the installed plugins at node start
+     */
+    public static final String STARTUP_TASK_PREFIX = "startup_";
+
+    private static final String MANIFEST_FILE = ".manifest";
+
     private final Injector injector;
 
     private final Environment environment;
@@ -66,26 +118,76 @@ public class DeployService extends AbstractLifecycleComponent<DeployService> imp
 
     private final DeployRegistry registry;
 
+    private final DeployThrottle throttle;
+
+    private final ThreadPool threadPool;
+
+    private final PageCacheRecycler pageCacheRecycler;
+
+    private final boolean loadFromArchive;
+
+    private final boolean startInBackground;
+
+    private final TimeValue idleTimeout;
+
+    // lazy plugins by name, with their directories
+    private final Map<String, File> lazyPlugins = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+
+    // the number of callers which acquired a lazy plugin and did not release it yet
+    private final Map<String, AtomicInteger> holders = new ConcurrentHashMap<>();
+
+    // the REST path prefixes of lazy plugins, a request to one of them activates the plugin
+    private final Map<String, List<String>> restPaths = new ConcurrentHashMap<>();
+
+    private final Map<String, URIClassLoader> classLoaders = new ConcurrentHashMap<>();
+
+    private final DeployJarStore jarStore;
+
+    private final DeployStore store;
+
+    private final DeployTaskService taskService;
+
+    private final File versionsDir;
+
     @Inject
     public DeployService(Settings settings, Environment environment, Injector injector, NodeService nodeService,
-                         DeployRegistry registry) {
+                         DeployRegistry registry, DeployThrottle throttle, ThreadPool threadPool,
+                         PageCacheRecycler pageCacheRecycler, DeployJarStore jarStore, DeployStore store,
+                         DeployTaskService taskService, RestController restController) {
         super(settings);
+        this.throttle = throttle;
+        this.threadPool = threadPool;
+        this.pageCacheRecycler = pageCacheRecycler;
+        this.jarStore = jarStore;
+        this.store = store;
+        this.taskService = taskService;
+        this.loadFromArchive = settings.getAsBoolean("plugins.deploy.load_from_archive", false);
+        this.startInBackground = settings.getAsBoolean("plugins.deploy.startup.background", false);
+        this.idleTimeout = settings.getAsTime("plugins.deploy.lazy.idle_timeout", TimeValue.timeValueMinutes(30));
         this.injector = injector;
         this.environment = environment;
+        this.versionsDir = new File(environment.pluginsFile().toFile(), DeployPlugin.NAME + File.separator + "versions");
         this.nodeService = nodeService;
         this.deployClassLoader = getClass().getClassLoader();
         this.registry = registry;
+        restController.registerFilter(new Activator());
     }
 
     @Override
     protected void doStart() throws ElasticsearchException {
         try {
-            initializeInstalledPlugins();
+            // in the background, the node does not wait for the plugins, and a failed plugin does not fail the node
+            initializeInstalledPlugins(!startInBackground);
         } catch (IOException e) {
             throw new ElasticsearchException(e.getMessage(), e);
         }
         nodeService.putAttribute("plugins",
                 Strings.collectionToCommaDelimitedString(registry.getPlugins().keySet()));
+        if (idleTimeout.millis() > 0L) {
+            threadPool.schedule(checkInterval(), ThreadPool.Names.GENERIC, new Passivator());
+        }
         logger.info("started");
     }
 
@@ -103,19 +205,208 @@ public class DeployService extends AbstractLifecycleComponent<DeployService> imp
     }
 
     public void initializeInstalledPlugins() throws IOException {
+        initializeInstalledPlugins(true);
+    }
+
+    /**
+     * Add the installed plugins.
+     *
+     * @param wait true if this method returns when all plugins are added, false if they are added in the background
+     * @throws IOException if a plugin can not be added
+     */
+    private void initializeInstalledPlugins(boolean wait) throws IOException {
         File dir = new File(environment.pluginsFile().toFile(), DeployPlugin.NAME + File.separator + "plugins");
+        Set<Path> versions = new HashSet<>();
+        Map<String, File> plugins = new TreeMap<>();
         if (dir.isDirectory()) {
             logger.info("found plugin dir {}", dir.getAbsolutePath());
-            File[] plugins = dir.listFiles();
-            if (plugins != null) {
-                for (File plugin : plugins) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File plugin : files) {
                     logger.info("found plugin {}", plugin.getAbsolutePath());
-                    if (plugin.isDirectory()) {
-                        add(plugin.getName(), plugin);
+                    if (plugin.isDirectory() && !plugin.getName().startsWith(".")) {
+                        // load from the version directory, so a later install can not change the files under the plugin
+                        Path version = plugin.toPath().toRealPath();
+                        versions.add(version);
+                        plugins.put(plugin.getName(), version.toFile());
                     }
                 }
             }
         }
+        if (!plugins.isEmpty()) {
+            Startup startup = new Startup(plugins);
+            startup.start();
+            if (wait) {
+                startup.await();
+            }
+        }
+        // versions left over from installs which were interrupted or replaced
+        File[] files = versionsDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!versions.contains(file.toPath().toRealPath())) {
+                    remove(file.toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Create an empty version directory for a plugin. An install is staged in there, while the installed version
+     * stays intact, and is made the installed version by {@link #activate(String, File)}.
+     *
+     * @param name the plugin name
+     * @return the version directory
+     * @throws IOException if the directory can not be created
+     */
+    public File stage(String name) throws IOException {
+        Files.createDirectories(versionsDir.toPath());
+        return Files.createTempDirectory(versionsDir.toPath(), name + "-").toFile();
+    }
+
+    /**
+     * Make a staged version the installed version of a plugin.
+     * The plugin directory is a symbolic link to the version directory, and it is switched by an atomic rename.
+     * Where symbolic links are not supported, the version directory itself is renamed into place.
+     * The previous version is kept, because the running plugin still loads classes from it. It is removed by
+     * {@link #remove(Path)} after the plugin is replaced, or restored by {@link #rollback(String, Path)}.
+     *
+     * @param name the plugin name
+     * @param staged the version directory
+     * @return the previous version directory, or null if the plugin was not installed
+     * @throws IOException if the version can not be activated
+     */
+    public Path activate(String name, File staged) throws IOException {
+        Path link = getPluginDir(name).toPath();
+        Files.createDirectories(link.getParent());
+        Path previous = null;
+        if (Files.isSymbolicLink(link)) {
+            previous = link.resolveSibling(Files.readSymbolicLink(link)).normalize();
+        } else if (Files.exists(link)) {
+            // a plugin directory which is not a link, move it out of the way
+            previous = versionsDir.toPath().resolve(name + "-" + Strings.randomBase64UUID());
+            Files.move(link, previous, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Path tmp = link.resolveSibling("." + name + "-" + Strings.randomBase64UUID());
+        try {
+            Files.createSymbolicLink(tmp, link.getParent().relativize(staged.toPath()));
+            Files.move(tmp, link, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("can not link {}, renaming {}", e, link, staged);
+            Files.deleteIfExists(tmp);
+            if (Files.isSymbolicLink(link)) {
+                Files.delete(link);
+            }
+            Files.move(staged.toPath(), link, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return previous;
+    }
+
+    /**
+     * Make the previous version the installed version of a plugin again, after the activated version could not
+     * be added, and remove the activated version in the background.
+     *
+     * @param name the plugin name
+     * @param previous the previous version directory, as returned by {@link #activate(String, File)}, or null
+     * @throws IOException if the previous version can not be restored
+     */
+    public void rollback(String name, Path previous) throws IOException {
+        Path link = getPluginDir(name).toPath();
+        Path failed;
+        if (Files.isSymbolicLink(link)) {
+            failed = link.resolveSibling(Files.readSymbolicLink(link)).normalize();
+            if (previous != null) {
+                Path tmp = link.resolveSibling("." + name + "-" + Strings.randomBase64UUID());
+                Files.createSymbolicLink(tmp, link.getParent().relativize(previous));
+                Files.move(tmp, link, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.delete(link);
+            }
+        } else {
+            failed = versionsDir.toPath().resolve(name + "-" + Strings.randomBase64UUID());
+            if (Files.exists(link)) {
+                Files.move(link, failed, StandardCopyOption.ATOMIC_MOVE);
+            }
+            if (previous != null) {
+                Files.move(previous, link, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        logger.info("rolled back {} to {}", name, previous);
+        remove(failed);
+    }
+
+    /**
+     * Get the version directory of an installed plugin.
+     *
+     * @param name the plugin name
+     * @return the directory to load the plugin from
+     * @throws IOException if the plugin is not installed
+     */
+    public File getInstalledVersion(String name) throws IOException {
+        return getPluginDir(name).toPath().toRealPath().toFile();
+    }
+
+    /**
+     * Remove a directory in the background.
+     *
+     * @param path the directory
+     */
+    public void remove(final Path path) {
+        threadPool.executor(ThreadPool.Names.GENERIC).execute(new AbstractRunnable() {
+            @Override
+            protected void doRun() throws Exception {
+                deleteFiles(path);
+                logger.debug("removed {}", path);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.warn("failed to remove {}", t, path);
+            }
+        });
+    }
+
+    /**
+     * Unpack a bundle in its directory, unless plugins are loaded from the archive. Entries which are
+     * unchanged from the installed version of the plugin are linked from there, not extracted again.
+     *
+     * @param name the plugin name
+     * @param path zip file or jar file
+     * @param task the task
+     * @return the directory or file to add the plugin from
+     * @throws IOException if the bundle can not be unpacked
+     */
+    public File unpack(String name, File path, DeployTask task) throws IOException {
+        if (loadFromArchive) {
+            return path;
+        }
+        task.setPhase(DeployTask.UNPACK);
+        File installed = getPluginDir(name);
+        return tryUnpackArchive(path, installed.isDirectory() ? installed.toPath().toRealPath().toFile() : null, task);
+    }
+
+    private File getPluginDir(String name) {
+        return new File(environment.pluginsFile().toFile(),
+                DeployPlugin.NAME + File.separator + "plugins" + File.separator + name);
+    }
+
+    private static void deleteFiles(Path directory) throws IOException {
+        if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
     }
 
     /**
@@ -126,69 +417,322 @@ public class DeployService extends AbstractLifecycleComponent<DeployService> imp
      * @throws java.io.IOException if method fails
      */
     public void add(String name, File path) throws IOException {
+        add(name, path, new DeployTask(null, name));
+    }
+
+    /**
+     * Add plugin to registry, and report the progress to a task
+     *
+     * @param name the name to register the plugin under
+     * @param path zip file or jar file
+     * @param task the task
+     * @throws java.io.IOException if method fails
+     */
+    public void add(String name, File path, DeployTask task) throws IOException {
+        Properties properties = path.isDirectory() ? readDescriptor(path) : null;
+        if (properties != null && Boolean.parseBoolean(properties.getProperty("lazy", "false"))) {
+            List<String> paths = new ArrayList<>();
+            for (String prefix : Strings.commaDelimitedListToSet(properties.getProperty("rest_paths", ""))) {
+                if (!prefix.trim().isEmpty()) {
+                    paths.add(prefix.trim());
+                }
+            }
+            synchronized (lazyPlugins) {
+                passivate(name);
+                lazyPlugins.put(name, path);
+                restPaths.put(name, paths);
+                registry.setState(name, DeployRegistry.State.INACTIVE);
+            }
+            logger.info("plugin {} is lazy, it is loaded when it is acquired or requested at {}", name, paths);
+            return;
+        }
+        lazyPlugins.remove(name);
+        restPaths.remove(name);
+        lastUsed.remove(name);
+        holders.remove(name);
+        load(name, path, task);
+    }
+
+    /**
+     * Get a plugin for use. A lazy plugin is loaded and started if it is inactive, and it is not passivated
+     * until it is released by {@link #release(String)}.
+     *
+     * @param name the plugin name
+     * @return the plugin, or null if the plugin is not registered
+     * @throws IOException if the plugin can not be loaded
+     */
+    public Plugin acquire(String name) throws IOException {
+        File path = lazyPlugins.get(name);
+        if (path != null) {
+            synchronized (lazyPlugins) {
+                DeployRegistry.State state = registry.getState(name);
+                if (state == DeployRegistry.State.INACTIVE || state == DeployRegistry.State.FAILED) {
+                    logger.info("activating lazy plugin {}", name);
+                    load(name, path, new DeployTask(null, name));
+                }
+                AtomicInteger count = holders.get(name);
+                if (count == null) {
+                    count = new AtomicInteger();
+                    holders.put(name, count);
+                }
+                count.incrementAndGet();
+                lastUsed.put(name, System.nanoTime());
+            }
+        }
+        return registry.getPlugin(name);
+    }
+
+    /**
+     * Release a plugin which was acquired. A lazy plugin is passivated when it was not acquired
+     * for the idle timeout after it was released by all callers.
+     *
+     * @param name the plugin name
+     */
+    public void release(String name) {
+        synchronized (lazyPlugins) {
+            AtomicInteger count = holders.get(name);
+            if (count != null && count.get() > 0) {
+                count.decrementAndGet();
+                lastUsed.put(name, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Stop a lazy plugin and close its class loader. The plugin stays registered as inactive,
+     * and is loaded again when it is acquired.
+     *
+     * @param name the plugin name
+     * @throws IOException if the class loader can not be closed
+     */
+    public void passivate(String name) throws IOException {
+        synchronized (lazyPlugins) {
+            Plugin plugin = registry.getPlugin(name);
+            Injector pluginInjector = registry.getInjector(name);
+            if (plugin != null) {
+                if (pluginInjector != null) {
+                    stopServices(pluginInjector, plugin);
+                }
+                registry.removePlugin(name);
+            }
+            URIClassLoader classLoader = classLoaders.remove(name);
+            if (classLoader != null) {
+                classLoader.close();
+            }
+            lastUsed.remove(name);
+            if (lazyPlugins.containsKey(name)) {
+                registry.setState(name, DeployRegistry.State.INACTIVE);
+                logger.info("lazy plugin {} passivated", name);
+            }
+            nodeService.putAttribute("plugins",
+                    Strings.collectionToCommaDelimitedString(registry.getPlugins().keySet()));
+        }
+    }
+
+    private void load(String name, File path, DeployTask task) throws IOException {
+        registry.setState(name, DeployRegistry.State.LOADING);
+        boolean started = false;
+        try {
+            started = loadAndStart(name, path, task);
+        } finally {
+            registry.setState(name, started ? DeployRegistry.State.READY : DeployRegistry.State.FAILED);
+        }
+    }
+
+    /**
+     * Load a plugin and start its services.
+     *
+     * @return true if the services were started
+     */
+    private boolean loadAndStart(String name, File path, DeployTask task) throws IOException {
+        boolean started = false;
         // create new class loader for each plugin
         URIClassLoader classLoader = new URIClassLoader(deployClassLoader);
-        // try to unpack zip
-        path = tryUnpackArchive(path);
-        // find all jars in archive
-        Set<URI> jars = findJars(path);
-        File descriptor = new File(path, "plugin-descriptor.properties");
-        InputStream in = new FileInputStream(descriptor);
-        Properties properties = new Properties();
-        properties.load(in);
-        String classname = properties.getProperty("classname");
-        logger.debug("classname={} jars={}", classname, jars);
-        Map<URI, String> pluginClassNames = new HashMap<>();
+        File dir = path.isDirectory() ? path : null;
+        DeployIndex index = readIndex(dir);
+        String classname;
+        URI pluginJar = null;
+        List<URI> jars;
+        URL settingsUrl = null;
+        if (index != null) {
+            // the index of an earlier install, no need to look for jars and for the plugin class
+            task.setPhase(DeployTask.LOAD);
+            classname = index.getClassname();
+            jars = index.getJars();
             for (URI jar : jars) {
                 classLoader.addURI(jar);
+            }
+            pluginJar = index.getJar();
+            if (index.getSettings() != null) {
+                settingsUrl = classLoader.getResource("elasticsearch.yml");
+            }
+            logger.info("loading {} jars from index of {}", jars.size(), dir);
+        } else {
+            Properties properties = new Properties();
+            File archive = loadFromArchive ? findArchive(path) : null;
+            if (archive != null && !canLoadFromArchive(archive)) {
+                archive = null;
+            }
+            if (archive != null) {
+                // load the jars from inside the zip, nothing is extracted
+                task.setPhase(DeployTask.LOAD);
+                try (ZipFile zipFile = new ZipFile(archive)) {
+                    List<ZipEntry> entries = new ArrayList<ZipEntry>(Collections.list(zipFile.entries()));
+                    readDescriptor(zipFile, entries, properties);
+                    jars = findJars(archive, entries);
+                }
+                logger.info("loading {} jars from {} without extracting", jars.size(), archive);
+            } else {
+                // try to unpack zip
+                task.setPhase(DeployTask.UNPACK);
+                path = tryUnpackArchive(path, null, task);
+                task.setPhase(DeployTask.LOAD);
+                // find all jars in archive
+                jars = findJars(path);
+                File descriptor = new File(path, "plugin-descriptor.properties");
+                try (InputStream in = new FileInputStream(descriptor)) {
+                    properties.load(in);
+                }
+            }
+            classname = properties.getProperty("classname");
+            logger.debug("classname={} jars={}", classname, jars);
+            for (URI jar : jars) {
+                classLoader.addURI(jar);
+                if (pluginJar == null) {
+                    try {
+                        classLoader.loadClass(classname);
+                        pluginJar = jar;
+                        logger.debug("found classname in {}", jar);
+                    } catch (ClassNotFoundException e) {
+                        // skip, next jar, do nothing
+                    }
+                }
+            }
+            settingsUrl = classLoader.getResource("elasticsearch.yml");
+        }
+        for (URI uri : classLoader.getURIs()) {
+            logger.info("class path member {}", uri);
+        }
+        if (pluginJar == null) {
+            logger.warn("plugin class {} not found for plugin {}", classname, name);
+            classLoader.close();
+        } else {
+            // instantiate the plugin, add it to registry
+            task.setPhase(DeployTask.START);
+            registry.setState(name, DeployRegistry.State.STARTING);
+            // check for existing plugin
+            if (registry.getPlugin(name) != null) {
+                logger.warn("old plugin {} exists", name);
+                Plugin oldPlugin = registry.getPlugin(name);
+                stopServices(registry.getInjector(name), oldPlugin);
+                logger.info("services stopped for plugin {}", name);
+                registry.removePlugin(name);
+            }
+            URIClassLoader oldClassLoader = classLoaders.remove(name);
+            if (oldClassLoader != null) {
+                oldClassLoader.close();
+            }
+            logger.info("instantiating plugin {}", name);
+            Plugin plugin = instantiatePluginClass(classname, classLoader, settingsUrl);
+            logger.info("processing modules for plugin {}", name);
+            Injector injector = null;
+            try {
+                injector = processModules(this.injector, plugin);
+                logger.info("modules processed for plugin {}, starting services...", name);
+                startServices(injector, plugin, settings, classLoader, pluginJar.toURL(), task);
+                logger.info("services started for plugin {}", name);
+                started = true;
+            } catch (Throwable t) {
+                logger.warn(t.getMessage(), t);
+            }
+            // the classes defined from the plugin jars while the plugin was instantiated and started
+            task.addClassesLoaded(classLoader.getClassesDefined());
+            registry.addPlugin(name, plugin, injector);
+            // closed when the plugin is replaced or passivated
+            classLoaders.put(name, classLoader);
+            if (index == null && dir != null) {
                 try {
-                    classLoader.loadClass(classname);
-                    pluginClassNames.put(jar, classname);
-                    logger.debug("found classname in {}", jar);
-                } catch (ClassNotFoundException e) {
-                    // skip, next jar, do nothing
-                }
-            }
-            for (URI uri : classLoader.getURIs()) {
-                logger.info("class path member {}", uri);
-            }
-            // instantiate all plugins in this path, add them to registry
-            for (Map.Entry<URI, String> entries : pluginClassNames.entrySet()) {
-                // check for existing plugin
-                if (registry.getPlugin(name) != null) {
-                    logger.warn("old plugin {} exists", name);
-                    Plugin oldPlugin = registry.getPlugin(name);
-                    stopServices(registry.getInjector(name), oldPlugin);
-                    logger.info("services stopped for plugin {}", name);
-                    registry.removePlugin(name);
-                }
-                logger.info("instantiating plugin {}", name);
-                Plugin plugin = instantiatePluginClass(entries.getValue(), classLoader);
-                logger.info("processing modules for plugin {}", name);
-                Injector injector = null;
-                try {
-                    injector = processModules(this.injector, plugin);
-                    logger.info("modules processed for plugin {}, starting services...", name);
-                    startServices(injector, plugin, settings, classLoader, entries.getKey().toURL());
-                    logger.info("services started for plugin {}", name);
-                } catch (Throwable t) {
-                    logger.warn(t.getMessage(), t);
+                    new DeployIndex(dir, classname, pluginJar, jars, store.getInstalledDigest(dir),
+                            settingsUrl != null ? settingsUrl.toString() : null).write(dir);
+                } catch (IOException e) {
+                    logger.warn("can not write index of {}", e, dir);
                 }
-                registry.addPlugin(name, plugin, injector);
             }
+        }
         logger.info("registry after adding = {}", registry);
         nodeService.putAttribute("plugins",
                 Strings.collectionToCommaDelimitedString(registry.getPlugins().keySet()));
+        return started;
+    }
+
+    /**
+     * Read the descriptor of an installed plugin.
+     *
+     * @param dir the plugin directory
+     * @return the descriptor properties
+     * @throws IOException if the descriptor can not be read
+     */
+    private Properties readDescriptor(File dir) throws IOException {
+        Properties properties = new Properties();
+        File archive = loadFromArchive ? findArchive(dir) : null;
+        if (archive != null) {
+            try (ZipFile zipFile = new ZipFile(archive)) {
+                readDescriptor(zipFile, new ArrayList<ZipEntry>(Collections.list(zipFile.entries())), properties);
+            }
+        } else {
+            try (InputStream in = new FileInputStream(new File(dir, "plugin-descriptor.properties"))) {
+                properties.load(in);
+            }
+        }
+        return properties;
+    }
+
+    private void readDescriptor(ZipFile zipFile, List<ZipEntry> entries, Properties properties) throws IOException {
+        String prefix = "";
+        if (topLevelDirInExcess(entries)) {
+            String entryName = entries.get(0).getName().replace('\\', '/');
+            prefix = entryName.substring(0, entryName.indexOf('/') + 1);
+        }
+        ZipEntry descriptor = zipFile.getEntry(prefix + "plugin-descriptor.properties");
+        if (descriptor == null) {
+            throw new FileNotFoundException("plugin-descriptor.properties not found in " + zipFile.getName());
+        }
+        try (InputStream in = zipFile.getInputStream(descriptor)) {
+            properties.load(in);
+        }
+    }
+
+    /**
+     * Check if the services of a deployed plugin are started.
+     *
+     * @param name the plugin name
+     * @return true if the plugin is registered and all its services are started
+     */
+    public boolean isStarted(String name) {
+        if (registry.getState(name) == DeployRegistry.State.INACTIVE) {
+            // a lazy plugin has nothing to start until it is acquired
+            return true;
+        }
+        Plugin plugin = registry.getPlugin(name);
+        Injector pluginInjector = registry.getInjector(name);
+        if (plugin == null || pluginInjector == null) {
+            return false;
+        }
+        for (Class<? extends LifecycleComponent> service : plugin.nodeServices()) {
+            if (pluginInjector.getInstance(service).lifecycleState() != Lifecycle.State.STARTED) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @SuppressWarnings("unchecked")
-    private Plugin instantiatePluginClass(String className, ClassLoader classLoader) {
+    private Plugin instantiatePluginClass(String className, ClassLoader classLoader, URL url) {
         try {
             Class<? extends Plugin> cl = (Class<? extends Plugin>) classLoader.loadClass(className);
             try {
                 // add custom settings from plugin
                 // add custom settings from elasticsearch.yml
-                URL url = classLoader.getResource("elasticsearch.yml");
                 if (url != null) {
                     Settings customSettings = settingsBuilder()
                             .put(settings)
@@ -214,7 +758,7 @@ public class DeployService extends AbstractLifecycleComponent<DeployService> imp
         }
     }
 
-    private File tryUnpackArchive(File file) throws IOException {
+    private File tryUnpackArchive(File file, File installed, DeployTask task) throws IOException {
         if (!file.exists()) {
             throw new IOException("file does not exist: " + file.getAbsolutePath());
         }
@@ -224,14 +768,23 @@ public class DeployService extends AbstractLifecycleComponent<DeployService> imp
         if (!file.getName().toLowerCase().endsWith(".zip")) {
             return file;
         }
+        long startTime = System.nanoTime();
         ZipFile zipFile = new ZipFile(file);
         try {
-            //we check whether we need to remove the top-level folder while extracting
-            //sometimes (e.g. github) the downloaded archive contains a top-level folder which needs to be removed
-            boolean removeTopLevelDir = topLevelDirInExcess(zipFile);
+            // one pass over the central directory
+            List<ZipEntry> entries = new ArrayList<>(zipFile.size());
             Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
             while (zipEntries.hasMoreElements()) {
-                ZipEntry zipEntry = zipEntries.nextElement();
+                entries.add(zipEntries.nextElement());
+            }
+            //we check whether we need to remove the top-level folder while extracting
+            //sometimes (e.g. github) the downloaded archive contains a top-level folder which needs to be removed
+            boolean removeTopLevelDir = topLevelDirInExcess(entries);
+            DeployManifest manifest = new DeployManifest();
+            DeployManifest installedManifest = readManifest(installed);
+            List<ZipEntry> files = new ArrayList<>(entries.size());
+            List<File> targets = new ArrayList<>(entries.size());
+            for (ZipEntry zipEntry : entries) {
                 if (zipEntry.isDirectory()) {
                     continue;
                 }
@@ -240,16 +793,34 @@ public class DeployService extends AbstractLifecycleComponent<DeployService> imp
                     zipEntryName = zipEntryName.substring(zipEntryName.indexOf('/'));
                 }
                 File target = new File(file.getParent(), zipEntryName);
+                // directories are created up front, so the workers do not race for them
                 File parent = target.getParentFile();
                 if (!parent.exists()) {
                     parent.mkdirs();
                 }
-                Streams.copy(zipFile.getInputStream(zipEntry), new FileOutputStream(target));
+                String relativeName = zipEntryName.startsWith("/") ? zipEntryName.substring(1) : zipEntryName;
+                manifest.add(relativeName, zipEntry.getCrc(), zipEntry.getSize());
+                if (installedManifest != null &&
+                        installedManifest.contains(relativeName, zipEntry.getCrc(), zipEntry.getSize()) &&
+                        link(new File(installed, relativeName), target)) {
+                    task.entrySkipped();
+                    continue;
+                }
+                files.add(zipEntry);
+                targets.add(target);
             }
+            extract(zipFile, files, targets, task);
+            try (OutputStream out = new FileOutputStream(new File(file.getParent(), MANIFEST_FILE))) {
+                manifest.write(out);
+            }
+            logger.info("unpacked {} entries of {} in {}, {} unchanged entries linked", files.size(), file.getName(),
+                    TimeValue.timeValueNanos(System.nanoTime() - startTime), manifest.getEntries().size() - files.size());
             return file.getParentFile();
-        } catch (Exception e) {
-            logger.error("failed to extract " + file.getAbsolutePath(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while extracting " + file.getAbsolutePath(), e);
         } finally {
+            task.addUnpackTime(System.nanoTime() - startTime);
             try {
                 zipFile.close();
             } catch (IOException e) {
@@ -260,16 +831,176 @@ public class DeployService extends AbstractLifecycleComponent<DeployService> imp
                 logger.warn("could not remove zip file");
             }
         }
-        return file.getParentFile();
     }
 
-    private boolean topLevelDirInExcess(ZipFile zipFile) {
+    /**
+     * Read the install index of a plugin directory, if it is valid for the installed bundle.
+     *
+     * @param dir the plugin directory, or null
+     * @return the index, or null
+     */
+    private DeployIndex readIndex(File dir) {
+        if (dir == null) {
+            return null;
+        }
+        try {
+            DeployIndex index = DeployIndex.read(dir);
+            if (index != null && index.isValidFor(dir, store.getInstalledDigest(dir))) {
+                return index;
+            }
+        } catch (IOException e) {
+            logger.warn("can not read index of {}", e, dir);
+        }
+        return null;
+    }
+
+    /**
+     * Read the manifest of the entries which were extracted into a plugin directory.
+     *
+     * @param dir the plugin directory, or null
+     * @return the manifest, or null if there is none
+     */
+    private DeployManifest readManifest(File dir) {
+        if (dir == null) {
+            return null;
+        }
+        File file = new File(dir, MANIFEST_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            return DeployManifest.read(in);
+        } catch (IOException e) {
+            logger.warn("can not read {}, extracting all entries", e, file);
+            return null;
+        }
+    }
+
+    private boolean link(File source, File target) {
+        if (!source.isFile()) {
+            return false;
+        }
+        try {
+            Files.deleteIfExists(target.toPath());
+            Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("can not link {}, extracting", e, source);
+            return false;
+        }
+    }
+
+    /**
+     * Extract zip entries in parallel on the unpack thread pool. The calling thread extracts, too,
+     * so the extraction makes progress even if the pool is busy with other bundles.
+     */
+    private void extract(final ZipFile zipFile, final List<ZipEntry> entries, final List<File> targets,
+                         final DeployTask task) throws IOException, InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        Callable<Void> worker = new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Recycler.V<byte[]> page = pageCacheRecycler.bytePage(false);
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(page.v());
+                    int i;
+                    while ((i = next.getAndIncrement()) < entries.size()) {
+                        task.ensureNotCancelled();
+                        extract(zipFile, entries.get(i), targets.get(i), buffer, task);
+                    }
+                    return null;
+                } catch (Exception e) {
+                    // let the other workers stop
+                    next.set(entries.size());
+                    throw e;
+                } finally {
+                    page.close();
+                }
+            }
+        };
+        int workers = Math.min(threadPool.info(UNPACK_THREAD_POOL).getMax(), entries.size());
+        List<FutureTask<Void>> futures = new ArrayList<>();
+        for (int i = 1; i < workers; i++) {
+            FutureTask<Void> future = new FutureTask<>(worker);
+            try {
+                threadPool.executor(UNPACK_THREAD_POOL).execute(future);
+                futures.add(future);
+            } catch (EsRejectedExecutionException e) {
+                break;
+            }
+        }
+        Throwable failure = null;
+        try {
+            worker.call();
+        } catch (Exception e) {
+            failure = e;
+        }
+        for (FutureTask<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failure = failure != null ? failure : e.getCause();
+            }
+        }
+        if (failure instanceof CancellationException) {
+            throw (CancellationException) failure;
+        }
+        if (failure != null) {
+            throw new IOException("failed to extract " + zipFile.getName(), failure);
+        }
+    }
+
+    /**
+     * Extract a zip entry. Jars which are in the jar store already are linked, not written, and
+     * other jars are added to the store.
+     */
+    private void extract(ZipFile zipFile, ZipEntry zipEntry, File target, ByteBuffer buffer, DeployTask task)
+            throws IOException {
+        boolean shared = jarStore.isShared(zipEntry);
+        // an existing file may be linked to the jar store, never write through it
+        Files.deleteIfExists(target.toPath());
+        if (shared) {
+            File jar = jarStore.find(zipFile, zipEntry, buffer.array());
+            if (jar != null && jarStore.link(jar, target)) {
+                task.jarLinked();
+                task.entryUnpacked();
+                return;
+            }
+        }
+        MessageDigest messageDigest = shared ? DeployStore.newDigest() : null;
+        CRC32 crc = new CRC32();
+        try (InputStream in = zipFile.getInputStream(zipEntry);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int len;
+            while ((len = in.read(buffer.array(), 0, buffer.capacity())) != -1) {
+                task.addThrottleTime(throttle.pause(len));
+                crc.update(buffer.array(), 0, len);
+                if (messageDigest != null) {
+                    messageDigest.update(buffer.array(), 0, len);
+                }
+                buffer.clear();
+                buffer.limit(len);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        }
+        // zip file streams do not check the checksum of an entry
+        if (zipEntry.getCrc() != -1L && crc.getValue() != zipEntry.getCrc()) {
+            throw new ZipException("checksum mismatch in " + zipEntry.getName() + " of " + zipFile.getName());
+        }
+        if (messageDigest != null) {
+            jarStore.add(zipEntry, DeployStore.toHex(messageDigest.digest()), target);
+        }
+        task.entryUnpacked();
+    }
+
+    private boolean topLevelDirInExcess(List<ZipEntry> zipEntries) {
         // we don't rely on ZipEntry#isDirectory because it might be that there is no explicit dir
         // but the files path do contain dirs, thus they are going to be extracted on sub-folders anyway
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
         Set<String> topLevelDirNames = new HashSet<>();
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry zipEntry = zipEntries.nextElement();
+        for (ZipEntry zipEntry : zipEntries) {
             String zipEntryName = zipEntry.getName().replace('\\', '/');
             int slash = zipEntryName.indexOf('/');
             // if there isn't a slash in the entry name it means that we have a file in the top-level
@@ -285,12 +1016,73 @@ public class DeployService extends AbstractLifecycleComponent<DeployService> imp
         return topLevelDirNames.size() == 1;
     }
 
-    private Set<URI> findJars(File root) {
-        Set<URI> jars = new HashSet<>();
+    /**
+     * Find the zip archive of a plugin, which is the given file, or the only zip file in the given directory
+     * if the plugin was installed from an archive before.
+     *
+     * @param path the path
+     * @return the archive, or null if the plugin is not in an archive
+     */
+    private File findArchive(File path) {
+        if (path.isFile()) {
+            return path.getName().toLowerCase().endsWith(".zip") ? path : null;
+        }
+        File archive = null;
+        File[] list = path.listFiles();
+        if (list != null) {
+            for (File f : list) {
+                // skip marker files like the installed digest
+                if (f.getName().startsWith(".")) {
+                    continue;
+                }
+                if (archive != null || !f.isFile() || !f.getName().toLowerCase().endsWith(".zip")) {
+                    return null;
+                }
+                archive = f;
+            }
+        }
+        return archive;
+    }
+
+    /**
+     * The class loader reads an archive by its central directory, which fails for zip64 archives.
+     * Such an archive is extracted instead.
+     *
+     * @param archive the archive
+     * @return true if the jars can be loaded from inside the archive
+     */
+    private boolean canLoadFromArchive(File archive) {
+        try {
+            ZipDirectory.verify(archive);
+            return true;
+        } catch (IOException e) {
+            logger.warn("can not load jars from inside {}, extracting it: {}", archive, e.getMessage());
+            return false;
+        }
+    }
+
+    private List<URI> findJars(File archive, List<ZipEntry> entries) throws IOException {
+        List<URI> jars = new ArrayList<>();
+        for (ZipEntry entry : entries) {
+            if (!entry.isDirectory() && entry.getName().endsWith(".jar")) {
+                try {
+                    jars.add(new URI("jar", archive.toURI() + "!/" + entry.getName(), null));
+                } catch (URISyntaxException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+        return jars;
+    }
+
+    private List<URI> findJars(File root) {
+        List<URI> jars = new ArrayList<>();
         File[] list = root.listFiles();
         if (list == null) {
             return jars;
         }
+        // a deterministic class path order
+        Arrays.sort(list);
         for (File f : list) {
             if (f.isDirectory()) {
                 jars.addAll(findJars(f.getAbsoluteFile()));
@@ -366,8 +1158,8 @@ public class DeployService extends AbstractLifecycleComponent<DeployService> imp
         }
     }
 
-    private void startServices(Injector injector, Plugin plugin, Settings settings, ClassLoader classLoader, URL url)
-            throws IOException {
+    private void startServices(Injector injector, Plugin plugin, Settings settings, ClassLoader classLoader, URL url,
+                               DeployTask task) throws IOException {
         for (Class<? extends LifecycleComponent> service : plugin.nodeServices()) {
             logger.info("found service {} {} to start", service, service.getClass());
             LifecycleComponent t = injector.getInstance(service);
@@ -388,6 +1180,7 @@ public class DeployService extends AbstractLifecycleComponent<DeployService> imp
             }
             logger.info("starting service {}", service);
             t.start();
+            task.serviceStarted();
             logger.info("service {} started", service);
         }
     }
@@ -400,4 +1193,281 @@ public class DeployService extends AbstractLifecycleComponent<DeployService> imp
         }
     }
 
+    /**
+     * Adds the installed plugins concurrently on the startup thread pool. A plugin is added as soon as the plugins
+     * it depends on are added, as declared by the comma-separated {@code dependencies} in its descriptor.
+     * A plugin is not added if a plugin it depends on failed, it fails, too.
+     */
+    class Startup {
+
+        private final Map<String, File> plugins;
+
+        private final Map<String, List<String>> dependents = new HashMap<>();
+
+        private final Map<String, AtomicInteger> pending = new HashMap<>();
+
+        // plugins which are not added because a dependency failed
+        private final Set<String> skipped = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        private final CountDownLatch latch;
+
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        private final long startTime = System.nanoTime();
+
+        Startup(Map<String, File> plugins) {
+            this.plugins = plugins;
+            this.latch = new CountDownLatch(plugins.size());
+            for (String name : plugins.keySet()) {
+                registry.setState(name, DeployRegistry.State.LOADING);
+            }
+            Map<String, Set<String>> dependencies = new TreeMap<>();
+            for (Map.Entry<String, File> plugin : plugins.entrySet()) {
+                String name = plugin.getKey();
+                Set<String> set = new TreeSet<>();
+                try {
+                    String value = readDescriptor(plugin.getValue()).getProperty("dependencies", "");
+                    for (String dependency : Strings.commaDelimitedListToSet(value)) {
+                        dependency = dependency.trim();
+                        if (plugins.containsKey(dependency) && !dependency.equals(name)) {
+                            set.add(dependency);
+                        } else if (!dependency.isEmpty()) {
+                            logger.warn("dependency {} of plugin {} is not installed", dependency, name);
+                        }
+                    }
+                } catch (IOException e) {
+                    // the plugin fails when it is added
+                    logger.debug("can not read descriptor of {}", e, name);
+                }
+                dependencies.put(name, set);
+            }
+            // plugins in a dependency cycle do not wait for each other
+            Set<String> ordered = new HashSet<>();
+            boolean progress = true;
+            while (progress) {
+                progress = false;
+                for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+                    if (!ordered.contains(entry.getKey()) && ordered.containsAll(entry.getValue())) {
+                        ordered.add(entry.getKey());
+                        progress = true;
+                    }
+                }
+            }
+            for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+                if (!ordered.contains(entry.getKey())) {
+                    logger.warn("plugin {} is in a dependency cycle, not waiting for {}", entry.getKey(),
+                            entry.getValue());
+                    entry.getValue().retainAll(ordered);
+                }
+                pending.put(entry.getKey(), new AtomicInteger(entry.getValue().size()));
+                dependents.put(entry.getKey(), new ArrayList<String>());
+            }
+            for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+                for (String dependency : entry.getValue()) {
+                    dependents.get(dependency).add(entry.getKey());
+                }
+            }
+        }
+
+        void start() {
+            // collected first, a dependent may become ready while the others are submitted
+            List<String> roots = new ArrayList<>();
+            for (Map.Entry<String, AtomicInteger> entry : pending.entrySet()) {
+                if (entry.getValue().get() == 0) {
+                    roots.add(entry.getKey());
+                }
+            }
+            for (String name : roots) {
+                submit(name);
+            }
+        }
+
+        void await() throws IOException {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while starting plugins", e);
+            }
+            Throwable t = failure.get();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t != null) {
+                throw new ElasticsearchException(t.getMessage(), t);
+            }
+        }
+
+        private void submit(final String name) {
+            threadPool.executor(STARTUP_THREAD_POOL).execute(new AbstractRunnable() {
+
+                private boolean failed;
+
+                @Override
+                protected void doRun() throws Exception {
+                    DeployTask task = taskService.register(STARTUP_TASK_PREFIX + name, name);
+                    try {
+                        add(name, plugins.get(name), task);
+                    } catch (Exception e) {
+                        task.fail(e);
+                        throw e;
+                    }
+                    if (registry.getState(name) == DeployRegistry.State.FAILED) {
+                        failed = true;
+                        task.fail(new ElasticsearchException("plugin " + name + " failed to start"));
+                        return;
+                    }
+                    task.done();
+                    logger.info("plugin {} started in {}", name, TimeValue.timeValueMillis(task.getEndTime() - task.getStartTime()));
+                }
+
+                @Override
+                public boolean isForceExecution() {
+                    // every plugin must be added before the node is started
+                    return true;
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    logger.error("failed to start plugin {}", t, name);
+                    failed = true;
+                    registry.setState(name, DeployRegistry.State.FAILED);
+                    failure.compareAndSet(null, t);
+                }
+
+                @Override
+                public void onAfter() {
+                    done(name, failed);
+                }
+            });
+        }
+
+        /**
+         * Submit the dependents of a plugin which are not waiting for other plugins, or fail them all
+         * if the plugin failed.
+         */
+        private void done(String name, boolean failed) {
+            for (String dependent : dependents.get(name)) {
+                if (failed) {
+                    // a dependent with several failed dependencies fails once
+                    if (skipped.add(dependent)) {
+                        logger.error("plugin {} is not started, dependency {} failed", dependent, name);
+                        registry.setState(dependent, DeployRegistry.State.FAILED);
+                        taskService.register(STARTUP_TASK_PREFIX + dependent, dependent)
+                                .fail(new ElasticsearchException("dependency " + name + " failed"));
+                        done(dependent, true);
+                    }
+                } else if (pending.get(dependent).decrementAndGet() == 0) {
+                    submit(dependent);
+                }
+            }
+            latch.countDown();
+            if (latch.getCount() == 0L) {
+                logger.info("started {} plugins in {}", plugins.size(),
+                        TimeValue.timeValueNanos(System.nanoTime() - startTime));
+            }
+        }
+    }
+
+    /**
+     * Find the lazy plugin which serves a REST path.
+     *
+     * @param path the request path
+     * @return the plugin name, or null
+     */
+    private String findLazyPlugin(String path) {
+        for (Map.Entry<String, List<String>> entry : restPaths.entrySet()) {
+            for (String prefix : entry.getValue()) {
+                if (path.equals(prefix) || path.startsWith(prefix.endsWith("/") ? prefix : prefix + "/")) {
+                    return entry.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Activates a lazy plugin when a REST request is dispatched to one of its paths. The plugin registers its
+     * REST handlers when it is loaded, so the request is processed after the plugin is started, and the request
+     * counts as use.
+     */
+    class Activator extends RestFilter {
+
+        @Override
+        public void process(final RestRequest request, final RestChannel channel, final RestFilterChain filterChain)
+                throws Exception {
+            final String name = findLazyPlugin(request.path());
+            if (name == null) {
+                filterChain.continueProcessing(request, channel);
+                return;
+            }
+            if (registry.getState(name) == DeployRegistry.State.READY) {
+                acquire(name);
+                try {
+                    filterChain.continueProcessing(request, channel);
+                } finally {
+                    release(name);
+                }
+                return;
+            }
+            // loading reads files and starts services, which is not done on a network thread
+            threadPool.executor(ThreadPool.Names.GENERIC).execute(new AbstractRunnable() {
+                @Override
+                protected void doRun() throws Exception {
+                    acquire(name);
+                    try {
+                        filterChain.continueProcessing(request, channel);
+                    } finally {
+                        release(name);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    logger.warn("failed to activate lazy plugin {} for {}", t, name, request.path());
+                    try {
+                        channel.sendResponse(new BytesRestResponse(channel, t));
+                    } catch (IOException e) {
+                        logger.warn("failed to send response", e);
+                    }
+                }
+            });
+        }
+    }
+
+    private TimeValue checkInterval() {
+        return TimeValue.timeValueMillis(Math.min(idleTimeout.millis(), TimeValue.timeValueMinutes(1).millis()));
+    }
+
+    /**
+     * Passivates lazy plugins which are not acquired, and were not acquired for the idle timeout.
+     */
+    class Passivator extends AbstractRunnable {
+
+        @Override
+        protected void doRun() throws Exception {
+            for (String name : lastUsed.keySet()) {
+                synchronized (lazyPlugins) {
+                    Long used = lastUsed.get(name);
+                    AtomicInteger count = holders.get(name);
+                    if (used != null && System.nanoTime() - used > idleTimeout.nanos() &&
+                            lazyPlugins.containsKey(name) && (count == null || count.get() == 0) &&
+                            registry.getState(name) == DeployRegistry.State.READY) {
+                        passivate(name);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            logger.warn("failed to passivate idle plugins", t);
+        }
+
+        @Override
+        public void onAfter() {
+            if (lifecycle.started()) {
+                threadPool.schedule(checkInterval(), ThreadPool.Names.GENERIC, this);
+            }
+        }
+    }
 }
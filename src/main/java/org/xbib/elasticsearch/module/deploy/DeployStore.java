@@ -0,0 +1,308 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.module.deploy;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.xbib.elasticsearch.plugin.deploy.DeployPlugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A node-local store of plugin bundles, addressed by the SHA-256 digest of their content
+ */
+public class DeployStore extends AbstractComponent {
+
+    private static final String DIGEST_FILE = ".digest";
+
+    private static final String ALIAS_SUFFIX = ".alias";
+
+    private final File dir;
+
+    private final int maxBundles;
+
+    @Inject
+    public DeployStore(Settings settings, Environment environment) {
+        super(settings);
+        this.dir = new File(environment.pluginsFile().toFile(), DeployPlugin.NAME + File.separator + "store");
+        this.maxBundles = settings.getAsInt("plugins.deploy.store.max_bundles", 10);
+    }
+
+    public boolean contains(String digest) {
+        return isDigest(digest) && getFile(digest).isFile();
+    }
+
+    /**
+     * Get the file of a bundle. A bundle which was rebuilt from a delta is found by the digest of the
+     * requested bundle, too.
+     *
+     * @param digest the digest
+     * @return the file, which may not exist
+     * @throws IllegalArgumentException if the digest is not a SHA-256 digest
+     */
+    public File getFile(String digest) {
+        File file = new File(dir, checkDigest(digest));
+        if (!file.isFile()) {
+            File alias = new File(dir, digest + ALIAS_SUFFIX);
+            if (alias.isFile()) {
+                try {
+                    String actualDigest = new String(Files.readAllBytes(alias.toPath()), StandardCharsets.UTF_8).trim();
+                    if (isDigest(actualDigest)) {
+                        return new File(dir, actualDigest);
+                    }
+                    logger.warn("invalid digest in {}", alias.getAbsolutePath());
+                } catch (IOException e) {
+                    logger.warn("can not read {}", e, alias.getAbsolutePath());
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Add a bundle to the store. The bundle is hard-linked into the store if possible, otherwise it is copied.
+     *
+     * @param digest the digest of the bundle
+     * @param file the bundle
+     * @throws IOException if the bundle can not be added
+     * @throws IllegalArgumentException if the digest is not a SHA-256 digest
+     */
+    public synchronized void put(String digest, File file) throws IOException {
+        if (contains(checkDigest(digest))) {
+            return;
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("unable to make directory: " + dir.getAbsolutePath());
+        }
+        File target = new File(dir, digest);
+        try {
+            Files.createLink(target.toPath(), file.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            File tmp = new File(dir, digest + ".tmp");
+            Files.copy(file.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        logger.debug("stored bundle {}", digest);
+        evict();
+    }
+
+    /**
+     * Add a bundle which was rebuilt as an equivalent of a requested bundle. The bundle is stored under
+     * its own digest, and the requested digest refers to it, so every bundle file matches the digest it is
+     * stored under.
+     *
+     * @param digest the digest of the requested bundle
+     * @param actualDigest the digest of the rebuilt bundle
+     * @param file the rebuilt bundle
+     * @throws IOException if the bundle can not be added
+     * @throws IllegalArgumentException if a digest is not a SHA-256 digest
+     */
+    public synchronized void put(String digest, String actualDigest, File file) throws IOException {
+        checkDigest(digest);
+        put(actualDigest, file);
+        if (!digest.equals(actualDigest)) {
+            File tmp = new File(dir, digest + ALIAS_SUFFIX + ".tmp");
+            Files.write(tmp.toPath(), actualDigest.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), new File(dir, digest + ALIAS_SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("bundle {} rebuilt as {}", digest, actualDigest);
+        }
+    }
+
+    /**
+     * Copy a bundle from the store.
+     *
+     * @param digest the digest of the bundle
+     * @param target the target file
+     * @throws IOException if the bundle is not in the store or can not be copied
+     */
+    public void copy(String digest, File target) throws IOException {
+        File file = getFile(digest);
+        if (!file.isFile()) {
+            throw new IOException("bundle " + digest + " is not in store");
+        }
+        Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the digest of the bundle that was installed into a plugin directory.
+     *
+     * @param pluginDir the plugin directory
+     * @return the digest, or null if unknown
+     */
+    public String getInstalledDigest(File pluginDir) {
+        File file = new File(pluginDir, DIGEST_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            logger.warn("can not read {}", e, file.getAbsolutePath());
+            return null;
+        }
+    }
+
+    public void setInstalledDigest(File pluginDir, String digest) throws IOException {
+        Files.write(new File(pluginDir, DIGEST_FILE).toPath(), digest.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void evict() {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().indexOf('.') < 0;
+            }
+        });
+        if (files != null && files.length > maxBundles) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    return Long.compare(f1.lastModified(), f2.lastModified());
+                }
+            });
+            for (int i = 0; i < files.length - maxBundles; i++) {
+                if (files[i].delete()) {
+                    logger.debug("evicted bundle {}", files[i].getName());
+                }
+            }
+        }
+        // aliases of evicted bundles
+        File[] aliases = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(ALIAS_SUFFIX);
+            }
+        });
+        if (aliases != null) {
+            for (File alias : aliases) {
+                String digest = alias.getName().substring(0, alias.getName().length() - ALIAS_SUFFIX.length());
+                if (!contains(digest) && alias.delete()) {
+                    logger.debug("evicted alias {}", digest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if a string is a SHA-256 digest in lowercase hex, as computed by this store. Only such a digest
+     * is used as a file name in the store.
+     *
+     * @param digest the string
+     * @return true if the string is a digest
+     */
+    public static boolean isDigest(String digest) {
+        if (digest == null || digest.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < digest.length(); i++) {
+            char c = digest.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param digest the digest
+     * @return the digest
+     * @throws IllegalArgumentException if the digest is not a SHA-256 digest in lowercase hex
+     */
+    public static String checkDigest(String digest) {
+        if (!isDigest(digest)) {
+            throw new IllegalArgumentException("invalid digest [" + digest + "], expected 64 lowercase hex characters");
+        }
+        return digest;
+    }
+
+    public static String digest(BytesReference content) throws IOException {
+        MessageDigest messageDigest = newDigest();
+        content.writeTo(new DigestOutputStream(new NullOutputStream(), messageDigest));
+        return toHex(messageDigest.digest());
+    }
+
+    /**
+     * Write content to a file, and compute the digest of the content while writing.
+     *
+     * @param content the content
+     * @param file the file
+     * @return the digest
+     * @throws IOException if the file can not be written
+     */
+    public static String write(BytesReference content, File file) throws IOException {
+        MessageDigest messageDigest = newDigest();
+        try (OutputStream out = new DigestOutputStream(new FileOutputStream(file), messageDigest)) {
+            content.writeTo(out);
+        }
+        return toHex(messageDigest.digest());
+    }
+
+    public static String digest(File file) throws IOException {
+        MessageDigest messageDigest = newDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, len);
+            }
+        }
+        return toHex(messageDigest.digest());
+    }
+
+    static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
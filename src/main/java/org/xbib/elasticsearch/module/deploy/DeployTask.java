@@ -0,0 +1,337 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.module.deploy;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a deploy on a single node. A task can be cancelled, and the deploy stops at the next check.
+ */
+public class DeployTask implements Streamable, ToXContent {
+
+    public static final String PREPARE = "prepare";
+
+    public static final String TRANSFER = "transfer";
+
+    public static final String UNPACK = "unpack";
+
+    public static final String LOAD = "load";
+
+    public static final String START = "start";
+
+    public static final String DONE = "done";
+
+    public static final String FAILED = "failed";
+
+    public static final String UNKNOWN = "unknown";
+
+    private String id;
+
+    private String name;
+
+    private volatile String phase;
+
+    private volatile boolean cancelled;
+
+    private volatile String failure;
+
+    private long startTime;
+
+    private volatile long endTime;
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final AtomicInteger entriesUnpacked = new AtomicInteger();
+
+    private final AtomicInteger classesLoaded = new AtomicInteger();
+
+    private final AtomicInteger servicesStarted = new AtomicInteger();
+
+    private final AtomicInteger jarsLinked = new AtomicInteger();
+
+    private final AtomicInteger entriesSkipped = new AtomicInteger();
+
+    private final AtomicLong throttleTimeInNanos = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private final AtomicLong writeTimeInNanos = new AtomicLong();
+
+    private final AtomicLong unpackTimeInNanos = new AtomicLong();
+
+    DeployTask() {
+    }
+
+    public DeployTask(String id, String name) {
+        this.id = id;
+        this.name = name;
+        this.phase = PREPARE;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @param id the task ID
+     * @return a placeholder for a task that is not known on a node
+     */
+    public static DeployTask unknown(String id) {
+        DeployTask task = new DeployTask(id, "");
+        task.phase = UNKNOWN;
+        return task;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        ensureNotCancelled();
+        this.phase = phase;
+    }
+
+    public void done() {
+        this.phase = DONE;
+        this.endTime = System.currentTimeMillis();
+    }
+
+    public void fail(Throwable t) {
+        this.phase = FAILED;
+        this.failure = t.getMessage() != null ? t.getMessage() : t.getClass().getName();
+        this.endTime = System.currentTimeMillis();
+    }
+
+    public String getFailure() {
+        return failure;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public boolean isFinished() {
+        return endTime > 0L;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException if the task has been cancelled
+     */
+    public void ensureNotCancelled() {
+        if (cancelled) {
+            throw new CancellationException("deploy task " + id + " of " + name + " was cancelled");
+        }
+    }
+
+    public void addBytesReceived(long bytes) {
+        bytesReceived.addAndGet(bytes);
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public void entryUnpacked() {
+        entriesUnpacked.incrementAndGet();
+    }
+
+    public int getEntriesUnpacked() {
+        return entriesUnpacked.get();
+    }
+
+    public void addClassesLoaded(int classes) {
+        classesLoaded.addAndGet(classes);
+    }
+
+    public int getClassesLoaded() {
+        return classesLoaded.get();
+    }
+
+    public void serviceStarted() {
+        servicesStarted.incrementAndGet();
+    }
+
+    public int getServicesStarted() {
+        return servicesStarted.get();
+    }
+
+    /**
+     * Count a jar which was linked from the jar store instead of being written.
+     */
+    public void jarLinked() {
+        jarsLinked.incrementAndGet();
+    }
+
+    public int getJarsLinked() {
+        return jarsLinked.get();
+    }
+
+    /**
+     * Count an entry which is unchanged from the installed version and was not extracted again.
+     */
+    public void entrySkipped() {
+        entriesSkipped.incrementAndGet();
+    }
+
+    public int getEntriesSkipped() {
+        return entriesSkipped.get();
+    }
+
+    public void addThrottleTime(long nanos) {
+        throttleTimeInNanos.addAndGet(nanos);
+    }
+
+    public long getThrottleTimeInNanos() {
+        return throttleTimeInNanos.get();
+    }
+
+    /**
+     * Record bundle bytes written to disk.
+     *
+     * @param bytes the number of bytes
+     * @param nanos the time the write took, including fsync
+     */
+    public void addBytesWritten(long bytes, long nanos) {
+        bytesWritten.addAndGet(bytes);
+        writeTimeInNanos.addAndGet(nanos);
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getWriteTimeInNanos() {
+        return writeTimeInNanos.get();
+    }
+
+    /**
+     * Record the time spent on extracting a bundle.
+     *
+     * @param nanos the time in nanoseconds
+     */
+    public void addUnpackTime(long nanos) {
+        unpackTimeInNanos.addAndGet(nanos);
+    }
+
+    public long getUnpackTimeInNanos() {
+        return unpackTimeInNanos.get();
+    }
+
+    public static DeployTask readDeployTask(StreamInput in) throws IOException {
+        DeployTask task = new DeployTask();
+        task.readFrom(in);
+        return task;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        id = in.readString();
+        name = in.readString();
+        phase = in.readString();
+        cancelled = in.readBoolean();
+        failure = in.readOptionalString();
+        startTime = in.readVLong();
+        endTime = in.readVLong();
+        bytesReceived.set(in.readVLong());
+        entriesUnpacked.set(in.readVInt());
+        classesLoaded.set(in.readVInt());
+        servicesStarted.set(in.readVInt());
+        jarsLinked.set(in.readVInt());
+        entriesSkipped.set(in.readVInt());
+        throttleTimeInNanos.set(in.readVLong());
+        bytesWritten.set(in.readVLong());
+        writeTimeInNanos.set(in.readVLong());
+        unpackTimeInNanos.set(in.readVLong());
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(id);
+        out.writeString(name);
+        out.writeString(phase);
+        out.writeBoolean(cancelled);
+        out.writeOptionalString(failure);
+        out.writeVLong(startTime);
+        out.writeVLong(endTime);
+        out.writeVLong(bytesReceived.get());
+        out.writeVInt(entriesUnpacked.get());
+        out.writeVInt(classesLoaded.get());
+        out.writeVInt(servicesStarted.get());
+        out.writeVInt(jarsLinked.get());
+        out.writeVInt(entriesSkipped.get());
+        out.writeVLong(throttleTimeInNanos.get());
+        out.writeVLong(bytesWritten.get());
+        out.writeVLong(writeTimeInNanos.get());
+        out.writeVLong(unpackTimeInNanos.get());
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("id", id)
+                .field("name", name)
+                .field("phase", phase)
+                .field("cancelled", cancelled);
+        if (failure != null) {
+            builder.field("failure", failure);
+        }
+        builder.field("start_time_in_millis", startTime);
+        if (endTime > 0L) {
+            builder.field("took_in_millis", endTime - startTime);
+        }
+        builder.field("bytes_received", bytesReceived.get())
+                .field("entries_unpacked", entriesUnpacked.get())
+                .field("entries_skipped", entriesSkipped.get())
+                .field("unpack_time_in_millis", TimeUnit.NANOSECONDS.toMillis(unpackTimeInNanos.get()))
+                .field("jars_linked", jarsLinked.get())
+                .field("classes_loaded", classesLoaded.get())
+                .field("services_started", servicesStarted.get())
+                .field("throttle_time_in_millis", TimeUnit.NANOSECONDS.toMillis(throttleTimeInNanos.get()))
+                .field("bytes_written", bytesWritten.get())
+                .field("write_time_in_millis", TimeUnit.NANOSECONDS.toMillis(writeTimeInNanos.get()));
+        if (writeTimeInNanos.get() > 0L) {
+            builder.field("write_throughput_in_bytes_per_sec",
+                    bytesWritten.get() * TimeUnit.SECONDS.toNanos(1) / writeTimeInNanos.get());
+        }
+        return builder;
+    }
+}
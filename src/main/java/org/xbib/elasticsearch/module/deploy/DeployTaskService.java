@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.module.deploy;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the deploy tasks of this node. Finished tasks are kept for a while, so their outcome can be read.
+ */
+public class DeployTaskService extends AbstractComponent {
+
+    private final ConcurrentMap<String, DeployTask> tasks = new ConcurrentHashMap<>();
+
+    private final TimeValue retention;
+
+    @Inject
+    public DeployTaskService(Settings settings) {
+        super(settings);
+        this.retention = settings.getAsTime("plugins.deploy.tasks.retention", TimeValue.timeValueHours(1));
+    }
+
+    /**
+     * Get the task with the given ID, or register a new one. A task that has been cancelled before
+     * it was registered is returned in cancelled state.
+     *
+     * @param id the task ID
+     * @param name the plugin name
+     * @return the task
+     */
+    public DeployTask register(String id, String name) {
+        expireTasks();
+        DeployTask task = new DeployTask(id, name);
+        DeployTask existing = tasks.putIfAbsent(id, task);
+        return existing != null ? existing : task;
+    }
+
+    public DeployTask get(String id) {
+        return tasks.get(id);
+    }
+
+    /**
+     * Cancel a task. If the task is not known yet, it is registered as cancelled.
+     *
+     * @param id the task ID
+     * @return the task
+     */
+    public DeployTask cancel(String id) {
+        DeployTask task = register(id, "");
+        task.cancel();
+        logger.info("deploy task {} cancelled", id);
+        return task;
+    }
+
+    private void expireTasks() {
+        long now = System.currentTimeMillis();
+        Iterator<DeployTask> it = tasks.values().iterator();
+        while (it.hasNext()) {
+            DeployTask task = it.next();
+            if ((task.isFinished() && now - task.getEndTime() > retention.millis()) ||
+                    (task.isCancelled() && now - task.getStartTime() > retention.millis())) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.module.deploy;
+
+import org.apache.lucene.store.RateLimiter.SimpleRateLimiter;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.node.settings.NodeSettingsService;
+
+/**
+ * Limits the rate at which deploys send, write, and unpack bundle bytes on this node.
+ *
+ * The limit is a dynamic cluster setting, so it can be changed while a deploy is running.
+ */
+public class DeployThrottle extends AbstractComponent {
+
+    public static final String MAX_BYTES_PER_SEC = "plugins.deploy.max_bytes_per_sec";
+
+    private final CounterMetric throttleTimeInNanos = new CounterMetric();
+
+    private volatile ByteSizeValue maxBytesPerSec;
+
+    private volatile SimpleRateLimiter rateLimiter;
+
+    @Inject
+    public DeployThrottle(Settings settings, NodeSettingsService nodeSettingsService) {
+        super(settings);
+        setMaxBytesPerSec(settings.getAsBytesSize(MAX_BYTES_PER_SEC, new ByteSizeValue(0)));
+        nodeSettingsService.addListener(new ApplySettings());
+    }
+
+    /**
+     * Pause until the given number of bytes may be processed.
+     *
+     * @param bytes the number of bytes
+     * @return the time paused, in nanoseconds
+     */
+    public long pause(long bytes) {
+        SimpleRateLimiter limiter = rateLimiter;
+        if (limiter == null || bytes <= 0L) {
+            return 0L;
+        }
+        long nanos = limiter.pause(bytes);
+        throttleTimeInNanos.inc(nanos);
+        return nanos;
+    }
+
+    public ByteSizeValue getMaxBytesPerSec() {
+        return maxBytesPerSec;
+    }
+
+    /**
+     * @return the total time deploys on this node were paused, in nanoseconds
+     */
+    public long getThrottleTimeInNanos() {
+        return throttleTimeInNanos.count();
+    }
+
+    private void setMaxBytesPerSec(ByteSizeValue maxBytesPerSec) {
+        this.maxBytesPerSec = maxBytesPerSec;
+        if (maxBytesPerSec.bytes() <= 0L) {
+            rateLimiter = null;
+        } else if (rateLimiter != null) {
+            rateLimiter.setMBPerSec(maxBytesPerSec.mbFrac());
+        } else {
+            rateLimiter = new SimpleRateLimiter(maxBytesPerSec.mbFrac());
+        }
+    }
+
+    class ApplySettings implements NodeSettingsService.Listener {
+        @Override
+        public void onRefreshSettings(Settings settings) {
+            ByteSizeValue value = settings.getAsBytesSize(MAX_BYTES_PER_SEC, maxBytesPerSec);
+            if (value.bytes() != maxBytesPerSec.bytes()) {
+                logger.info("updating [{}] from [{}] to [{}]", MAX_BYTES_PER_SEC, maxBytesPerSec, value);
+                setMaxBytesPerSec(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014 Jörg Prante
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xbib.elasticsearch.module.deploy;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.xbib.elasticsearch.plugin.deploy.DeployPlugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives plugin bundles chunk by chunk and spools them to disk.
+ *
+ * The pages of received content are written to the file channel by gathering writes, without copying.
+ * The fsync policy decides whether the file is forced to disk never, at the end of a transfer, or after each chunk.
+ */
+public class DeployTransferService extends AbstractComponent {
+
+    public static final String FSYNC_NONE = "none";
+
+    public static final String FSYNC_END = "end";
+
+    public static final String FSYNC_CHUNK = "chunk";
+
+    private final File dir;
+
+    private final String fsync;
+
+    private final TimeValue timeout;
+
+    private final Map<String, Transfer> transfers;
+
+    private final AtomicLong fsyncs = new AtomicLong();
+
+    @Inject
+    public DeployTransferService(Settings settings, Environment environment) {
+        super(settings);
+        this.dir = new File(environment.pluginsFile().toFile(), DeployPlugin.NAME + File.separator + "transfers");
+        this.timeout = settings.getAsTime("plugins.deploy.transfer.timeout", TimeValue.timeValueMinutes(5));
+        this.fsync = settings.get("plugins.deploy.transfer.fsync", FSYNC_END);
+        if (!FSYNC_NONE.equals(fsync) && !FSYNC_END.equals(fsync) && !FSYNC_CHUNK.equals(fsync)) {
+            throw new IllegalArgumentException("unknown fsync policy [" + fsync + "], expected one of [" +
+                    FSYNC_NONE + ", " + FSYNC_END + ", " + FSYNC_CHUNK + "]");
+        }
+        this.transfers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Write a chunk of a transfer to disk. Chunks may arrive out of order.
+     *
+     * @param transferId the transfer ID
+     * @param offset the offset of the chunk
+     * @param content the chunk content
+     * @return the number of distinct bytes received so far for this transfer
+     * @throws IOException if the chunk can not be written
+     * @throws IllegalArgumentException if the transfer ID can not be used as a file name
+     */
+    public long receive(String transferId, long offset, BytesReference content) throws IOException {
+        checkTransferId(transferId);
+        Transfer transfer = transfers.get(transferId);
+        if (transfer == null) {
+            expireTransfers();
+            synchronized (transfers) {
+                transfer = transfers.get(transferId);
+                if (transfer == null) {
+                    transfer = new Transfer(new File(dir, transferId + ".part"));
+                    transfers.put(transferId, transfer);
+                    logger.debug("transfer {} started", transferId);
+                }
+            }
+        }
+        synchronized (transfer) {
+            if (transfer.channel == null) {
+                throw new IOException("transfer " + transferId + " is already closed");
+            }
+            transfer.channel.position(offset);
+            write(transfer.channel, content);
+            if (FSYNC_CHUNK.equals(fsync)) {
+                force(transfer.channel);
+            }
+            // a chunk which arrives again, for example from a retry, is counted once
+            Integer previous = transfer.chunks.put(offset, content.length());
+            transfer.received += content.length() - (previous != null ? previous : 0);
+            transfer.lastAccess = System.currentTimeMillis();
+            return transfer.received;
+        }
+    }
+
+    /**
+     * Complete a transfer.
+     *
+     * @param transferId the transfer ID
+     * @param length the expected length of the transferred bundle
+     * @return the file holding the transferred bundle
+     * @throws IOException if the transfer is unknown or incomplete
+     */
+    public File finish(String transferId, long length) throws IOException {
+        Transfer transfer = transfers.remove(transferId);
+        if (transfer == null) {
+            throw new IOException("unknown transfer " + transferId);
+        }
+        synchronized (transfer) {
+            if (FSYNC_END.equals(fsync) && transfer.channel != null) {
+                force(transfer.channel);
+            }
+            transfer.close();
+            if (transfer.received != length || transfer.file.length() != length) {
+                delete(transfer.file);
+                throw new IOException("incomplete transfer " + transferId + ": expected " + length +
+                        " bytes, received " + transfer.received);
+            }
+        }
+        logger.debug("transfer {} finished, {} bytes", transferId, length);
+        return transfer.file;
+    }
+
+    /**
+     * Write content that was received in one piece to a file.
+     *
+     * @param file the file
+     * @param content the content
+     * @throws IOException if the content can not be written
+     */
+    public void write(File file, BytesReference content) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, content);
+            if (!FSYNC_NONE.equals(fsync)) {
+                force(channel);
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, BytesReference content) throws IOException {
+        ByteBuffer[] buffers = content.toChannelBuffer().toByteBuffers();
+        long written = 0L;
+        while (written < content.length()) {
+            written += channel.write(buffers);
+        }
+    }
+
+    private void force(FileChannel channel) throws IOException {
+        channel.force(false);
+        fsyncs.incrementAndGet();
+    }
+
+    /**
+     * @return the number of times received content was forced to disk
+     */
+    public long getFsyncCount() {
+        return fsyncs.get();
+    }
+
+    /**
+     * Abort a transfer and remove the partially received file.
+     *
+     * @param transferId the transfer ID
+     */
+    public void abort(String transferId) {
+        Transfer transfer = transfers.remove(transferId);
+        if (transfer != null) {
+            synchronized (transfer) {
+                transfer.close();
+                delete(transfer.file);
+            }
+            logger.info("transfer {} aborted", transferId);
+        }
+    }
+
+    private void expireTransfers() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Transfer>> it = transfers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Transfer> entry = it.next();
+            if (now - entry.getValue().lastAccess > timeout.millis()) {
+                it.remove();
+                synchronized (entry.getValue()) {
+                    entry.getValue().close();
+                    delete(entry.getValue().file);
+                }
+                logger.warn("transfer {} expired", entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * A transfer ID names the file of the transfer, it must be a token like the base64 UUIDs of the coordinating node.
+     */
+    private static void checkTransferId(String transferId) {
+        boolean valid = transferId != null && !transferId.isEmpty();
+        for (int i = 0; valid && i < transferId.length(); i++) {
+            char c = transferId.charAt(i);
+            valid = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+        }
+        if (!valid) {
+            throw new IllegalArgumentException("invalid transfer ID [" + transferId + "]");
+        }
+    }
+
+    private void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warn("could not remove {}", file.getAbsolutePath());
+        }
+    }
+
+    private class Transfer {
+
+        private final File file;
+
+        private FileChannel channel;
+
+        // the lengths of the received chunks by offset
+        private final Map<Long, Integer> chunks = new HashMap<>();
+
+        private long received;
+
+        private long lastAccess;
+
+        Transfer(File file) throws IOException {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("unable to make directory: " + dir.getAbsolutePath());
+            }
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.lastAccess = System.currentTimeMillis();
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.warn("could not close {}", e, file.getAbsolutePath());
+                }
+                channel = null;
+            }
+        }
+    }
+}
@@ -16,6 +16,8 @@
 package org.xbib.elasticsearch.plugin.deploy;
 
 import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.cluster.ClusterModule;
+import org.elasticsearch.cluster.settings.Validator;
 import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.settings.Settings;
@@ -23,8 +25,11 @@ import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.rest.RestModule;
 import org.xbib.elasticsearch.action.deploy.DeployAction;
 import org.xbib.elasticsearch.action.deploy.TransportDeployAction;
+import org.xbib.elasticsearch.module.deploy.DeployDownloadService;
+import org.xbib.elasticsearch.module.deploy.DeployJarStore;
 import org.xbib.elasticsearch.module.deploy.DeployModule;
 import org.xbib.elasticsearch.module.deploy.DeployService;
+import org.xbib.elasticsearch.module.deploy.DeployThrottle;
 import org.xbib.elasticsearch.rest.deploy.RestDeployAction;
 
 import java.util.ArrayList;
@@ -55,6 +60,25 @@ public class DeployPlugin extends Plugin {
         return "Deploy plugin";
     }
 
+    @Override
+    public Settings additionalSettings() {
+        Settings.Builder builder = Settings.settingsBuilder();
+        fixedThreadPool(builder, TransportDeployAction.DEPLOY_THREAD_POOL, 2, 16);
+        fixedThreadPool(builder, TransportDeployAction.READ_THREAD_POOL, 2, 64);
+        fixedThreadPool(builder, TransportDeployAction.TRANSFER_THREAD_POOL, 4, 1000);
+        fixedThreadPool(builder, TransportDeployAction.BUNDLE_THREAD_POOL, 2, 16);
+        fixedThreadPool(builder, DeployDownloadService.THREAD_POOL_NAME, 2, 16);
+        fixedThreadPool(builder, DeployService.UNPACK_THREAD_POOL, 4, 64);
+        fixedThreadPool(builder, DeployService.STARTUP_THREAD_POOL, 4, 64);
+        return builder.build();
+    }
+
+    private static void fixedThreadPool(Settings.Builder builder, String name, int size, int queueSize) {
+        builder.put("threadpool." + name + ".type", "fixed")
+                .put("threadpool." + name + ".size", size)
+                .put("threadpool." + name + ".queue_size", queueSize);
+    }
+
     @Override
     public Collection<Module> nodeModules() {
         Collection<Module> modules = new ArrayList<>();
@@ -68,6 +92,7 @@ public class DeployPlugin extends Plugin {
     public Collection<Class<? extends LifecycleComponent>> nodeServices() {
         Collection<Class<? extends LifecycleComponent>> services = new ArrayList<>();
         if (settings.getAsBoolean("plugins.deploy.enabled", true)) {
+            services.add(DeployJarStore.class);
             services.add(DeployService.class);
         }
         return services;
@@ -81,4 +106,8 @@ public class DeployPlugin extends Plugin {
         module.addRestAction(RestDeployAction.class);
     }
 
+    public void onModule(ClusterModule module) {
+        module.registerClusterDynamicSetting(DeployThrottle.MAX_BYTES_PER_SEC, Validator.BYTES_SIZE);
+    }
+
 }
@@ -15,11 +15,18 @@
  */
 package org.xbib.elasticsearch.rest.deploy;
 
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.env.Environment;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.BytesRestResponse;
 import org.elasticsearch.rest.RestChannel;
@@ -28,25 +35,61 @@ import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.rest.action.support.RestToXContentListener;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.xbib.elasticsearch.action.deploy.DeployAction;
 import org.xbib.elasticsearch.action.deploy.DeployRequest;
 import org.xbib.elasticsearch.action.deploy.DeployRequestBuilder;
 import org.xbib.elasticsearch.action.deploy.DeployResponse;
+import org.xbib.elasticsearch.module.deploy.DeployDownloadService;
+import org.xbib.elasticsearch.module.deploy.DeployStore;
+import org.xbib.elasticsearch.plugin.deploy.DeployPlugin;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 public class RestDeployAction extends BaseRestHandler {
 
     Client client;
 
+    private final ThreadPool threadPool;
+
+    private final File uploadDir;
+
+    private final ByteSizeValue maxUploadSize;
+
     @Inject
-    public RestDeployAction(Settings settings, Client client, RestController controller) {
+    public RestDeployAction(Settings settings, Client client, RestController controller, Environment environment,
+                            ThreadPool threadPool) {
         super(settings, controller, client);
         this.client = client;
+        this.threadPool = threadPool;
+        this.uploadDir = new File(environment.pluginsFile().toFile(), DeployPlugin.NAME + File.separator + "uploads");
+        // the HTTP layer aggregates the request body in the heap before a handler sees it, so the only limit which
+        // applies before buffering is the maximum content length of the HTTP layer
+        ByteSizeValue maxContentLength = settings.getAsBytesSize("http.max_content_length",
+                new ByteSizeValue(100, ByteSizeUnit.MB));
+        this.maxUploadSize = settings.getAsBytesSize("plugins.deploy.upload.max_size", maxContentLength);
+        if (maxUploadSize.bytes() > maxContentLength.bytes()) {
+            throw new IllegalArgumentException("plugins.deploy.upload.max_size [" + maxUploadSize +
+                    "] exceeds http.max_content_length [" + maxContentLength + "]");
+        }
+        // uploads left over from a previous run
+        File[] files = uploadDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    logger.warn("can not delete {}", file.getAbsolutePath());
+                }
+            }
+        }
         controller.registerHandler(RestRequest.Method.GET, "/_deploy", new Get());
         controller.registerHandler(RestRequest.Method.POST, "/_deploy", new Post());
         controller.registerHandler(RestRequest.Method.PUT, "/_deploy", new Put());
+        controller.registerHandler(RestRequest.Method.GET, "/_deploy/_tasks/{id}", new Task(false));
+        controller.registerHandler(RestRequest.Method.POST, "/_deploy/_tasks/{id}/_cancel", new Task(true));
+        controller.registerHandler(RestRequest.Method.POST, "/_deploy/{name}/_activate", new Activate());
     }
 
     @Override
@@ -59,7 +102,9 @@ public class RestDeployAction extends BaseRestHandler {
         public void handleRequest(final RestRequest request, final RestChannel channel) {
             try {
                 DeployRequestBuilder deployRequestBuilder = new DeployRequestBuilder(client.admin().cluster())
-                        .setRead(true);
+                        .setRead(true)
+                        .setName(request.param("name"))
+                        .setReadyTimeout(request.paramAsTime("wait_for_ready", null));
                 final DeployRequest deployRequest = deployRequestBuilder.request();
                 client.admin().cluster().execute(DeployAction.INSTANCE, deployRequest,
                         new RestToXContentListener<DeployResponse>(channel));
@@ -80,14 +125,18 @@ public class RestDeployAction extends BaseRestHandler {
         public void handleRequest(final RestRequest request, final RestChannel channel) {
             try {
                 Map<String, Object> body = XContentHelper.convertToMap(request.content(), false).v2();
+                if (body.get("bundles") instanceof List) {
+                    batch((List<?>) body.get("bundles"), request, channel);
+                    return;
+                }
                 String name = body.containsKey("name") ? body.get("name").toString() : request.param("name");
                 String path = body.containsKey("path") ? body.get("path").toString() : request.param("path");
+                // a bundle from a URL is downloaded in the background on the coordinating node
                 DeployRequestBuilder deployRequestBuilder = new DeployRequestBuilder(client.admin().cluster())
                         .setName(name)
-                        .setPath(settings, path);
-                final DeployRequest deployRequest = deployRequestBuilder.request();
-                client.admin().cluster().execute(DeployAction.INSTANCE, deployRequest,
-                        new RestToXContentListener<DeployResponse>(channel));
+                        .setPath(settings, path)
+                        .setShared(request.paramAsBoolean("shared", false));
+                execute(deployRequestBuilder.request(), request, channel, null);
             } catch (Throwable ex) {
                 logger.error(ex.getMessage(), ex);
                 try {
@@ -100,6 +149,99 @@ public class RestDeployAction extends BaseRestHandler {
         }
     }
 
+    /**
+     * Deploy several bundles in one request. Bundles from URLs are downloaded first, on the download executor.
+     */
+    private void batch(List<?> specs, RestRequest request, RestChannel channel) throws IOException {
+        if (specs.isEmpty()) {
+            throw new IllegalArgumentException("no bundles given");
+        }
+        DeployRequestBuilder deployRequestBuilder = new DeployRequestBuilder(client.admin().cluster());
+        for (int i = 0; i < specs.size(); i++) {
+            if (!(specs.get(i) instanceof Map)) {
+                throw new IllegalArgumentException("bundle " + i + " is not an object");
+            }
+            Map<?, ?> spec = (Map<?, ?>) specs.get(i);
+            String name = spec.get("name") != null ? spec.get("name").toString() : null;
+            String path = spec.get("path") != null ? spec.get("path").toString() : null;
+            if (name == null) {
+                throw new IllegalArgumentException("bundle " + i + " has no name");
+            }
+            deployRequestBuilder.addBundle(new DeployRequest().setName(name).setPath(settings, path)
+                    .setShared(request.paramAsBoolean("shared", false)));
+        }
+        execute(deployRequestBuilder.request(), request, channel, null);
+    }
+
+    /**
+     * Execute a deploy as a task. Unless the client waits for completion, the task ID is returned at once,
+     * and the outcome can be read from the task endpoint.
+     *
+     * @param deployRequest the deploy request
+     * @param request the REST request
+     * @param channel the REST channel
+     * @param cleanup the file to delete when the deploy is finished, or null
+     */
+    private void execute(DeployRequest deployRequest, RestRequest request, RestChannel channel, File cleanup) {
+        deployRequest.setTaskId(Strings.randomBase64UUID());
+        deployRequest.setWaveSize(request.paramAsInt("wave_size", 0));
+        deployRequest.setReadyTimeout(request.paramAsTime("wait_for_ready", null));
+        boolean waitForCompletion = request.paramAsBoolean("wait_for_completion", false);
+        if (!waitForCompletion) {
+            sendTask(deployRequest.getTaskId(), channel);
+        }
+        client.admin().cluster().execute(DeployAction.INSTANCE, deployRequest,
+                listener(deployRequest, waitForCompletion, channel, cleanup));
+    }
+
+    private ActionListener<DeployResponse> listener(final DeployRequest deployRequest, final boolean waitForCompletion,
+                                                    final RestChannel channel, final File cleanup) {
+        final RestToXContentListener<DeployResponse> restListener = new RestToXContentListener<>(channel);
+        return new ActionListener<DeployResponse>() {
+            @Override
+            public void onResponse(DeployResponse response) {
+                if (cleanup != null) {
+                    delete(cleanup);
+                }
+                if (waitForCompletion) {
+                    restListener.onResponse(response);
+                } else {
+                    logger.info("deploy task {} of {} finished", deployRequest.getTaskId(), deployRequest.getName());
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                if (cleanup != null) {
+                    delete(cleanup);
+                }
+                if (waitForCompletion) {
+                    restListener.onFailure(e);
+                } else {
+                    logger.error("deploy task {} of {} failed", e, deployRequest.getTaskId(), deployRequest.getName());
+                }
+            }
+        };
+    }
+
+    private void sendTask(String taskId, RestChannel channel) {
+        try {
+            XContentBuilder builder = channel.newBuilder().startObject().field("task", taskId).endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.ACCEPTED, builder));
+        } catch (IOException e) {
+            sendFailure(e, channel);
+        }
+    }
+
+    private void sendFailure(Throwable e, RestChannel channel) {
+        try {
+            channel.sendResponse(new BytesRestResponse(channel, e));
+        } catch (IOException ex2) {
+            logger.error(ex2.getMessage(), ex2);
+            channel.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR));
+        }
+    }
+
     class Put implements RestHandler {
         @Override
         public void handleRequest(final RestRequest request, final RestChannel channel) {
@@ -109,17 +251,16 @@ public class RestDeployAction extends BaseRestHandler {
                     throw new IllegalArgumentException("no name given");
                 }
                 BytesReference content =  request.content();
+                if (content.length() > maxUploadSize.bytes()) {
+                    channel.sendResponse(new BytesRestResponse(RestStatus.REQUEST_ENTITY_TOO_LARGE,
+                            "upload of " + content.length() + " bytes exceeds " + maxUploadSize));
+                    return;
+                }
                 String contentType = request.header("Accept");
                 if (contentType == null) {
                     contentType = "application/zip"; // assume zip by default, for unpacking
                 }
-                DeployRequestBuilder deployRequestBuilder = new DeployRequestBuilder(client.admin().cluster())
-                        .setName(name)
-                        .setContentType(contentType)
-                        .setContent(content);
-                final DeployRequest deployRequest = deployRequestBuilder.request();
-                client.admin().cluster().execute(DeployAction.INSTANCE, deployRequest,
-                        new RestToXContentListener<DeployResponse>(channel));
+                upload(name, contentType, content, request, channel);
             } catch (Throwable ex) {
                 logger.error(ex.getMessage(), ex);
                 try {
@@ -131,4 +272,87 @@ public class RestDeployAction extends BaseRestHandler {
             }
         }
     }
+
+    /**
+     * Spool the upload to disk and digest it on the download executor, so the HTTP worker is not blocked,
+     * then deploy it. The body is already buffered in the heap by the HTTP layer, spooling does not change that,
+     * but the buffer is not held while the bundle is transferred to the nodes.
+     */
+    private void upload(final String name, final String contentType, final BytesReference content,
+                        final RestRequest request, final RestChannel channel) {
+        threadPool.executor(DeployDownloadService.THREAD_POOL_NAME).execute(new AbstractRunnable() {
+            @Override
+            protected void doRun() throws Exception {
+                if (!uploadDir.exists() && !uploadDir.mkdirs()) {
+                    throw new IOException("unable to make directory: " + uploadDir.getAbsolutePath());
+                }
+                File file = new File(uploadDir, Strings.randomBase64UUID() + ".upload");
+                String digest;
+                try {
+                    digest = DeployStore.write(content, file);
+                } catch (IOException e) {
+                    delete(file);
+                    throw e;
+                }
+                DeployRequestBuilder deployRequestBuilder = new DeployRequestBuilder(client.admin().cluster())
+                        .setName(name)
+                        .setContentType(contentType)
+                        .setFile(file, digest);
+                execute(deployRequestBuilder.request(), request, channel, file);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.error(t.getMessage(), t);
+                sendFailure(t, channel);
+            }
+        });
+    }
+
+    class Task implements RestHandler {
+
+        private final boolean cancel;
+
+        Task(boolean cancel) {
+            this.cancel = cancel;
+        }
+
+        @Override
+        public void handleRequest(final RestRequest request, final RestChannel channel) {
+            try {
+                DeployRequestBuilder deployRequestBuilder = new DeployRequestBuilder(client.admin().cluster())
+                        .setRead(true)
+                        .setTaskId(request.param("id"))
+                        .setCancel(cancel);
+                client.admin().cluster().execute(DeployAction.INSTANCE, deployRequestBuilder.request(),
+                        new RestToXContentListener<DeployResponse>(channel));
+            } catch (Throwable ex) {
+                logger.error(ex.getMessage(), ex);
+                sendFailure(ex, channel);
+            }
+        }
+    }
+
+    class Activate implements RestHandler {
+        @Override
+        public void handleRequest(final RestRequest request, final RestChannel channel) {
+            try {
+                DeployRequestBuilder deployRequestBuilder = new DeployRequestBuilder(client.admin().cluster())
+                        .setRead(true)
+                        .setName(request.param("name"))
+                        .setActivate(true);
+                client.admin().cluster().execute(DeployAction.INSTANCE, deployRequestBuilder.request(),
+                        new RestToXContentListener<DeployResponse>(channel));
+            } catch (Throwable ex) {
+                logger.error(ex.getMessage(), ex);
+                sendFailure(ex, channel);
+            }
+        }
+    }
+
+    private void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warn("can not delete {}", file.getAbsolutePath());
+        }
+    }
 }
@@ -105,6 +105,10 @@ public abstract class AbstractNodeTestHelper {
         return clients.get(id);
     }
 
+    public Node node(String id) {
+        return nodes.get(id);
+    }
+
     private Node buildNode(String id) {
         Settings finalSettings = settingsBuilder()
                 .put(getNodeSettings())
@@ -0,0 +1,237 @@
+package org.xbib.elasticsearch;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbib.elasticsearch.module.deploy.DeployDelta;
+import org.xbib.elasticsearch.module.deploy.DeployManifest;
+import org.xbib.elasticsearch.module.deploy.DeployStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeployDeltaTest {
+
+    private Path dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("test-delta-");
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<String, byte[]> v1 = new LinkedHashMap<>();
+        v1.put("plugin-descriptor.properties", "classname=a.B\n".getBytes(StandardCharsets.UTF_8));
+        v1.put("lib/common.jar", DeployTest.jar(0));
+        v1.put("lib/changed.jar", DeployTest.jar(1));
+        v1.put("lib/removed.txt", "removed".getBytes(StandardCharsets.UTF_8));
+        Map<String, byte[]> v2 = new LinkedHashMap<>(v1);
+        v2.put("lib/changed.jar", DeployTest.jar(2));
+        v2.remove("lib/removed.txt");
+        v2.put("lib/added.txt", "added".getBytes(StandardCharsets.UTF_8));
+        File base = write("v1.zip", zip(v1));
+        File delta = dir.resolve("v2.delta").toFile();
+        DeployManifest baseManifest;
+        try (ZipFile zipFile = new ZipFile(base)) {
+            baseManifest = DeployManifest.of(zipFile);
+        }
+        assertTrue(DeployDelta.create(new BytesArray(zip(v2)), baseManifest, delta));
+        // only new and changed entries are in the delta
+        assertEquals(Arrays.asList("lib/changed.jar", "lib/added.txt", DeployDelta.MANIFEST_ENTRY), names(delta));
+        File target = dir.resolve("v2.zip").toFile();
+        DeployManifest manifest = DeployDelta.apply(base, delta, target);
+        assertEquals(v2.keySet(), manifest.getEntries().keySet());
+        assertEquals(new ArrayList<>(v2.keySet()), names(target));
+        try (ZipFile zipFile = new ZipFile(target)) {
+            for (Map.Entry<String, byte[]> entry : v2.entrySet()) {
+                try (InputStream in = zipFile.getInputStream(zipFile.getEntry(entry.getKey()))) {
+                    assertArrayEquals(entry.getKey(), entry.getValue(), read(in));
+                }
+            }
+            assertEquals(manifest, DeployManifest.of(zipFile));
+        }
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("plugin-descriptor.properties", "classname=a.B\n".getBytes(StandardCharsets.UTF_8));
+        entries.put("lib/name with spaces.jar", DeployTest.jar(1));
+        File file = write("v1.zip", zip(entries));
+        DeployManifest manifest;
+        try (ZipFile zipFile = new ZipFile(file)) {
+            manifest = DeployManifest.of(zipFile);
+            for (ZipEntry zipEntry : Collections.list(zipFile.entries())) {
+                assertTrue(manifest.contains(zipEntry.getName(), zipEntry.getCrc(), zipEntry.getSize()));
+                assertFalse(manifest.contains(zipEntry.getName(), zipEntry.getCrc() + 1, zipEntry.getSize()));
+                assertFalse(manifest.contains(zipEntry.getName(), zipEntry.getCrc(), zipEntry.getSize() + 1));
+            }
+        }
+        assertEquals(entries.keySet(), manifest.getEntries().keySet());
+        assertFalse(manifest.contains("missing", 0L, 0L));
+        // text form, as in a delta and in an installed plugin
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.write(out);
+        assertEquals(manifest, DeployManifest.read(new ByteArrayInputStream(out.toByteArray())));
+        // wire form, as in a probe response
+        BytesStreamOutput streamOutput = new BytesStreamOutput();
+        manifest.writeTo(streamOutput);
+        DeployManifest copy = new DeployManifest();
+        copy.readFrom(StreamInput.wrap(streamOutput.bytes()));
+        assertEquals(manifest, copy);
+        try {
+            DeployManifest.read(new ByteArrayInputStream("invalid\n".getBytes(StandardCharsets.UTF_8)));
+            fail();
+        } catch (IOException e) {
+            assertEquals("invalid manifest line: invalid", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testNoZip() throws Exception {
+        assertFalse(DeployDelta.create(new BytesArray("no zip".getBytes(StandardCharsets.UTF_8)),
+                new DeployManifest(), dir.resolve("none.delta").toFile()));
+    }
+
+    @Test
+    public void testWrongBase() throws Exception {
+        Map<String, byte[]> v1 = Collections.singletonMap("a.txt", "a".getBytes(StandardCharsets.UTF_8));
+        Map<String, byte[]> v2 = new LinkedHashMap<>();
+        v2.put("a.txt", "a".getBytes(StandardCharsets.UTF_8));
+        v2.put("b.txt", "b".getBytes(StandardCharsets.UTF_8));
+        File base = write("v1.zip", zip(v1));
+        File delta = dir.resolve("v2.delta").toFile();
+        try (ZipFile zipFile = new ZipFile(base)) {
+            assertTrue(DeployDelta.create(new BytesArray(zip(v2)), DeployManifest.of(zipFile), delta));
+        }
+        // the base has "a.txt" with other content
+        File other = write("other.zip", zip(Collections.singletonMap("a.txt", "x".getBytes(StandardCharsets.UTF_8))));
+        try {
+            DeployDelta.apply(other, delta, dir.resolve("bad.zip").toFile());
+            fail();
+        } catch (IOException e) {
+            assertEquals("entry a.txt does not match the manifest", e.getMessage());
+        }
+        // the base has no "a.txt"
+        File empty = write("empty.zip", zip(Collections.singletonMap("c.txt", new byte[0])));
+        try {
+            DeployDelta.apply(empty, delta, dir.resolve("bad.zip").toFile());
+            fail();
+        } catch (IOException e) {
+            assertEquals("entry a.txt is neither in delta nor in base", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRebuiltBundleIsStoredUnderItsOwnDigest() throws Exception {
+        Settings settings = settingsBuilder()
+                .put("path.home", dir.toString())
+                .put("path.plugins", dir.resolve("plugins").toString())
+                .build();
+        DeployStore store = new DeployStore(settings, new Environment(settings));
+        byte[] requested = zip(Collections.singletonMap("a.txt", "a".getBytes(StandardCharsets.UTF_8)));
+        String digest = DeployStore.digest(new BytesArray(requested));
+        File rebuilt = write("rebuilt.zip", zip(Collections.singletonMap("a.txt", "a".getBytes(StandardCharsets.UTF_8)), 0L));
+        String actualDigest = DeployStore.digest(rebuilt);
+        assertNotEquals(digest, actualDigest);
+        store.put(digest, actualDigest, rebuilt);
+        assertTrue(store.contains(digest));
+        assertTrue(store.contains(actualDigest));
+        assertEquals(store.getFile(actualDigest), store.getFile(digest));
+        assertEquals(actualDigest, store.getFile(digest).getName());
+        assertEquals(actualDigest, DeployStore.digest(store.getFile(digest)));
+        File copy = dir.resolve("copy.zip").toFile();
+        store.copy(digest, copy);
+        assertArrayEquals(Files.readAllBytes(rebuilt.toPath()), Files.readAllBytes(copy.toPath()));
+    }
+
+    private File write(String name, byte[] b) throws IOException {
+        return Files.write(dir.resolve(name), b).toFile();
+    }
+
+    private static List<String> names(File file) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(file)) {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] zip(Map<String, byte[]> entries) throws IOException {
+        return zip(entries, 1000000000000L);
+    }
+
+    static byte[] zip(Map<String, byte[]> entries, long time) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                zipEntry.setTime(time);
+                zip.putNextEntry(zipEntry);
+                zip.write(entry.getValue());
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,176 @@
+package org.xbib.elasticsearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.After;
+import org.junit.Test;
+import org.xbib.elasticsearch.action.deploy.DeployRequestBuilder;
+import org.xbib.elasticsearch.action.deploy.DeployResponse;
+import org.xbib.elasticsearch.module.deploy.DeployDownloadService;
+import org.xbib.elasticsearch.module.deploy.DeployStore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeployDownloadTest extends AbstractNodeTestHelper {
+
+    private Path plugins;
+
+    private HttpServer server;
+
+    // the Range and If-Range headers of each request
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+
+    // the If-None-Match header of each request
+    private final List<String> conditions = new CopyOnWriteArrayList<>();
+
+    @Override
+    protected Settings getNodeSettings() {
+        try {
+            if (plugins == null) {
+                plugins = Files.createTempDirectory(Paths.get(getHome()).getParent(), "test-plugins-");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("path.plugins", plugins.toString())
+                .put("plugins.deploy.domains", "127.0.0.1")
+                .put("plugins.deploy.download.retry_delay", "10ms")
+                .put("plugins.deploy.download.max_bundles", 2)
+                .build();
+    }
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        byte[] bundle = DeployTest.bundle(1, false);
+        URL url = serve("/bundle.zip", bundle, true);
+        DeployDownloadService service = node("1").injector().getInstance(DeployDownloadService.class);
+        try (DeployDownloadService.Download download = download(service, url)) {
+            assertEquals(DeployStore.digest(new BytesArray(bundle)), download.getDigest());
+            assertArrayEquals(bundle, Files.readAllBytes(download.getFile().toPath()));
+        }
+        assertEquals(2, ranges.size());
+        assertNull(ranges.get(0));
+        assertEquals("bytes=" + bundle.length / 2 + "- \"v1\"", ranges.get(1));
+        // the cached bundle is not modified
+        try (DeployDownloadService.Download download = download(service, url)) {
+            assertArrayEquals(bundle, Files.readAllBytes(download.getFile().toPath()));
+        }
+        assertEquals(3, conditions.size());
+        assertEquals("\"v1\"", conditions.get(2));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        DeployDownloadService service = node("1").injector().getInstance(DeployDownloadService.class);
+        DeployDownloadService.Download held = download(service, serve("/held.zip", DeployTest.bundle(0, false), false));
+        for (int i = 1; i <= 3; i++) {
+            URL url = serve("/" + i + ".zip", DeployTest.bundle(i, false), false);
+            download(service, url).close();
+            // the file times of the cache have a resolution of a second on some file systems
+            Thread.sleep(1000L);
+        }
+        assertTrue(held.getFile().isFile());
+        held.close();
+        DeployDownloadService.Download last = download(service, serve("/4.zip", DeployTest.bundle(4, false), false));
+        last.close();
+        assertFalse(held.getFile().isFile());
+        assertTrue(last.getFile().isFile());
+        String[] cached = plugins.resolve("deploy/downloads").toFile().list();
+        int count = 0;
+        for (String name : cached) {
+            count += name.indexOf('.') < 0 ? 1 : 0;
+        }
+        assertEquals(2, count);
+    }
+
+    @Test
+    public void testDeployFromURL() throws Exception {
+        URL url = serve("/demo.zip", DeployTest.bundle(1, false), false);
+        DeployResponse response = new DeployRequestBuilder(client("1").admin().cluster())
+                .setName("download")
+                .setContentType("application/zip")
+                .setPath(node("1").settings(), url.toString())
+                .execute().actionGet();
+        assertTrue(response.getNodes()[0].getSuccess());
+        assertTrue(Files.isRegularFile(plugins.resolve("deploy/plugins/download/lib/data.txt")));
+    }
+
+    private static DeployDownloadService.Download download(DeployDownloadService service, URL url) {
+        PlainActionFuture<DeployDownloadService.Download> future = PlainActionFuture.newFuture();
+        service.download(url, future);
+        return future.actionGet();
+    }
+
+    /**
+     * Serve a bundle with an ETag. If interrupted, the first response breaks off in the middle.
+     */
+    private URL serve(String path, final byte[] bundle, final boolean interrupted) throws IOException {
+        if (server == null) {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.start();
+        }
+        final AtomicBoolean first = new AtomicBoolean(true);
+        server.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                ranges.add(range == null ? null : range + " " + exchange.getRequestHeaders().getFirst("If-Range"));
+                conditions.add(exchange.getRequestHeaders().getFirst("If-None-Match"));
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                int offset = 0;
+                if (range != null && "\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+                    offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                    exchange.getResponseHeaders().add("Content-Range",
+                            "bytes " + offset + "-" + (bundle.length - 1) + "/" + bundle.length);
+                    exchange.sendResponseHeaders(206, bundle.length - offset);
+                } else {
+                    exchange.sendResponseHeaders(200, bundle.length);
+                }
+                OutputStream out = exchange.getResponseBody();
+                if (interrupted && first.getAndSet(false)) {
+                    out.write(bundle, 0, bundle.length / 2);
+                    out.flush();
+                    // the server closes the connection before the response is complete
+                    throw new IOException("interrupted");
+                }
+                out.write(bundle, offset, bundle.length - offset);
+                exchange.close();
+            }
+        });
+        return new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+    }
+}
@@ -0,0 +1,80 @@
+package org.xbib.elasticsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbib.elasticsearch.module.deploy.DeployIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeployIndexTest {
+
+    private Path dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("test-index-");
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        Files.deleteIfExists(dir.resolve(".index"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        File pluginDir = dir.toFile();
+        assertNull(DeployIndex.read(pluginDir));
+        List<URI> jars = Arrays.asList(new File(pluginDir, "a.jar").toURI(), new File(pluginDir, "lib/b c.jar").toURI());
+        new DeployIndex(pluginDir, "a.B", jars.get(1), jars, "0123abcd", "file:/x/elasticsearch.yml").write(pluginDir);
+        DeployIndex index = DeployIndex.read(pluginDir);
+        assertEquals("a.B", index.getClassname());
+        assertEquals(jars.get(1), index.getJar());
+        assertEquals(jars, index.getJars());
+        assertEquals("0123abcd", index.getDigest());
+        assertEquals("file:/x/elasticsearch.yml", index.getSettings());
+        assertTrue(index.isValidFor(pluginDir, "0123abcd"));
+        // another bundle was installed since
+        assertFalse(index.isValidFor(pluginDir, "4567ef"));
+        assertFalse(index.isValidFor(pluginDir, null));
+        // the directory was moved
+        assertFalse(index.isValidFor(new File(pluginDir, "moved"), "0123abcd"));
+    }
+
+    @Test
+    public void testWithoutDigestAndSettings() throws Exception {
+        File pluginDir = dir.toFile();
+        URI jar = new File(pluginDir, "a.jar").toURI();
+        new DeployIndex(pluginDir, "a.B", jar, Arrays.asList(jar), null, null).write(pluginDir);
+        DeployIndex index = DeployIndex.read(pluginDir);
+        assertNull(index.getDigest());
+        assertNull(index.getSettings());
+        assertTrue(index.isValidFor(pluginDir, null));
+        assertFalse(index.isValidFor(pluginDir, "0123abcd"));
+    }
+
+    @Test
+    public void testInvalidIndex() throws Exception {
+        Files.write(dir.resolve(".index"), "classname=a.B\njars=x\n".getBytes(StandardCharsets.UTF_8));
+        try {
+            DeployIndex.read(dir.toFile());
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("invalid index"));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.xbib.elasticsearch;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbib.elasticsearch.module.deploy.DeployJarStore;
+import org.xbib.elasticsearch.module.deploy.DeployStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeployJarStoreTest {
+
+    private Path dir;
+
+    private ThreadPool threadPool;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("test-jars-");
+        threadPool = new ThreadPool("test");
+    }
+
+    @After
+    public void deleteDir() throws Exception {
+        threadPool.shutdown();
+        threadPool.awaitTermination(10, TimeUnit.SECONDS);
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testLinkAndCollect() throws Exception {
+        DeployJarStore store = store(true);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("plugin-descriptor.properties", "classname=a.B\n".getBytes(StandardCharsets.UTF_8));
+        entries.put("lib/common.jar", DeployTest.jar(0));
+        File bundle = Files.write(dir.resolve("bundle.zip"), DeployDeltaTest.zip(entries)).toFile();
+        byte[] buffer = new byte[8192];
+        try (ZipFile zipFile = new ZipFile(bundle)) {
+            assertFalse(store.isShared(zipFile.getEntry("plugin-descriptor.properties")));
+            assertTrue(store.isShared(zipFile.getEntry("lib/common.jar")));
+            assertNull(store.find(zipFile, zipFile.getEntry("lib/common.jar"), buffer));
+            // the first plugin extracts the jar and adds it to the store
+            File first = extract(zipFile, "lib/common.jar", dir.resolve("plugins/first/lib/common.jar"));
+            store.add(zipFile.getEntry("lib/common.jar"), DeployStore.digest(first), first);
+            // the second plugin links it
+            File jar = store.find(zipFile, zipFile.getEntry("lib/common.jar"), buffer);
+            assertEquals(DeployStore.digest(first), DeployStore.digest(jar));
+            File second = dir.resolve("plugins/second/lib/common.jar").toFile();
+            assertTrue(second.getParentFile().mkdirs());
+            assertTrue(store.link(jar, second));
+            assertTrue(Files.isSameFile(first.toPath(), second.toPath()));
+            // the jar is still linked from a plugin directory
+            Files.delete(first.toPath());
+            assertEquals(0, store.gc());
+            assertTrue(jar.exists());
+            Files.delete(second.toPath());
+            assertEquals(1, store.gc());
+            assertFalse(jar.exists());
+            assertNull(store.find(zipFile, zipFile.getEntry("lib/common.jar"), buffer));
+            assertFalse(store.link(jar, second));
+        }
+    }
+
+    @Test
+    public void testStoredJarsAreFoundAfterRestart() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("lib/common.jar", DeployTest.jar(0));
+        File bundle = Files.write(dir.resolve("bundle.zip"), DeployDeltaTest.zip(entries)).toFile();
+        try (ZipFile zipFile = new ZipFile(bundle)) {
+            File file = extract(zipFile, "lib/common.jar", dir.resolve("plugins/first/lib/common.jar"));
+            store(true).add(zipFile.getEntry("lib/common.jar"), DeployStore.digest(file), file);
+            DeployJarStore store = store(true);
+            store.start();
+            try {
+                assertTrue(Files.isSameFile(file.toPath(),
+                        store.find(zipFile, zipFile.getEntry("lib/common.jar"), new byte[8192]).toPath()));
+            } finally {
+                store.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("lib/common.jar", DeployTest.jar(0));
+        File bundle = Files.write(dir.resolve("bundle.zip"), DeployDeltaTest.zip(entries)).toFile();
+        try (ZipFile zipFile = new ZipFile(bundle)) {
+            assertFalse(store(false).isShared(zipFile.getEntry("lib/common.jar")));
+        }
+    }
+
+    private DeployJarStore store(boolean shared) {
+        Settings settings = settingsBuilder()
+                .put("path.home", dir.toString())
+                .put("path.plugins", dir.resolve("plugins").toString())
+                .put("plugins.deploy.jars.shared", shared)
+                .build();
+        return new DeployJarStore(settings, new Environment(settings), threadPool);
+    }
+
+    private static File extract(ZipFile zipFile, String name, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try (InputStream in = zipFile.getInputStream(zipFile.getEntry(name))) {
+            Files.copy(in, target);
+        }
+        return target.toFile();
+    }
+}
@@ -0,0 +1,9 @@
+package org.xbib.elasticsearch;
+
+public class DeployPullTransferTest extends DeployTransferTest {
+
+    @Override
+    protected String getTransferMode() {
+        return "pull";
+    }
+}
@@ -0,0 +1,140 @@
+package org.xbib.elasticsearch;
+
+import org.elasticsearch.common.component.Lifecycle;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.plugins.Plugin;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbib.elasticsearch.action.deploy.DeployRequestBuilder;
+import org.xbib.elasticsearch.action.deploy.DeployResponse;
+import org.xbib.elasticsearch.module.deploy.DeployRegistry;
+import org.xbib.elasticsearch.module.deploy.DeployService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeployReadinessTest extends AbstractNodeTestHelper {
+
+    private static volatile CountDownLatch started;
+
+    private static volatile CountDownLatch release;
+
+    private Path plugins;
+
+    /**
+     * A plugin which blocks in its constructor until the test releases it.
+     */
+    public static class SlowPlugin extends Plugin {
+
+        public SlowPlugin() throws InterruptedException {
+            started.countDown();
+            release.await(30, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public String name() {
+            return "slow";
+        }
+
+        @Override
+        public String description() {
+            return "slow";
+        }
+    }
+
+    @Before
+    public void createLatches() {
+        started = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+    }
+
+    @Override
+    protected Settings getNodeSettings() {
+        try {
+            if (plugins == null) {
+                plugins = Files.createTempDirectory(Paths.get(getHome()).getParent(), "test-plugins-");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("path.plugins", plugins.toString())
+                .put("plugins.deploy.startup.background", true)
+                .build();
+    }
+
+    @Test
+    public void testStatesAtStartup() throws Exception {
+        install("slow", SlowPlugin.class.getName(), "");
+        install("after", DeployTest.DemoPlugin.class.getName(), "slow");
+        install("broken", DeployTest.BrokenPlugin.class.getName(), "");
+        try {
+            // the service starts while the plugins are added in the background, a failing plugin does not abort it
+            DeployService service = restart();
+            assertEquals(Lifecycle.State.STARTED, service.lifecycleState());
+            DeployRegistry registry = service.getRegistry();
+            assertTrue(started.await(30, TimeUnit.SECONDS));
+            assertEquals(DeployRegistry.State.STARTING, registry.getState("slow"));
+            // waits for its dependency
+            assertEquals(DeployRegistry.State.LOADING, registry.getState("after"));
+            // the wait ends at the timeout, with the state at that time
+            long t0 = System.currentTimeMillis();
+            assertEquals(DeployRegistry.State.STARTING, registry.awaitReady("slow", TimeValue.timeValueMillis(200)));
+            assertTrue(System.currentTimeMillis() - t0 >= 200L);
+            assertEquals(DeployRegistry.State.FAILED, registry.awaitReady("broken", TimeValue.timeValueSeconds(10)));
+            release.countDown();
+            assertEquals(DeployRegistry.State.READY, registry.awaitReady("slow", TimeValue.timeValueSeconds(10)));
+            assertEquals(DeployRegistry.State.READY, registry.awaitReady("after", TimeValue.timeValueSeconds(10)));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testReadTimesOut() throws Exception {
+        install("slow", SlowPlugin.class.getName(), "");
+        try {
+            restart();
+            assertTrue(started.await(30, TimeUnit.SECONDS));
+            long t0 = System.currentTimeMillis();
+            DeployResponse response = new DeployRequestBuilder(client("1").admin().cluster())
+                    .setRead(true)
+                    .setName("slow")
+                    .setReadyTimeout(TimeValue.timeValueMillis(200))
+                    .execute().actionGet();
+            assertTrue(System.currentTimeMillis() - t0 >= 200L);
+            assertEquals("starting", response.getNodes()[0].getStates().get("slow"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * Restart the deploy service of the node, which adds the installed plugins like at node startup.
+     */
+    private DeployService restart() {
+        DeployService service = node("1").injector().getInstance(DeployService.class);
+        service.stop();
+        service.start();
+        return service;
+    }
+
+    private void install(String name, String classname, String dependencies) throws IOException {
+        Path dir = plugins.resolve("deploy/plugins").resolve(name);
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("plugin-descriptor.properties"),
+                ("classname=" + classname + "\ndependencies=" + dependencies + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve(name + ".jar"), DeployTest.jar(1));
+    }
+}
@@ -0,0 +1,111 @@
+package org.xbib.elasticsearch;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.transport.DummyTransportAddress;
+import org.junit.Test;
+import org.xbib.elasticsearch.action.deploy.DeployRelayTree;
+import org.xbib.elasticsearch.action.deploy.DeployRoute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeployRelayTreeTest {
+
+    @Test
+    public void testDirect() {
+        List<DeployRoute> roots = DeployRelayTree.build(nodes(5, null), 0, null, "n0");
+        assertEquals(5, roots.size());
+        for (DeployRoute route : roots) {
+            assertTrue(route.getChildren().isEmpty());
+        }
+    }
+
+    @Test
+    public void testFanOut() {
+        List<DeployRoute> roots = DeployRelayTree.build(nodes(20, null), 3, null, "n7");
+        assertEquals(3, roots.size());
+        assertEquals("n7", roots.get(0).getNodeId());
+        Set<String> seen = new HashSet<>();
+        collect(roots, seen, 3);
+        assertEquals(20, seen.size());
+    }
+
+    @Test
+    public void testMaxDirect() {
+        assertEquals(0, DeployRelayTree.fanOut(8, 0, 8));
+        assertEquals(3, DeployRelayTree.fanOut(50, 3, 8));
+        assertEquals(0, DeployRelayTree.fanOut(50, 0, 0));
+        int fanOut = DeployRelayTree.fanOut(50, 0, 8);
+        assertEquals(8, fanOut);
+        List<DeployRoute> roots = DeployRelayTree.build(nodes(50, null), fanOut, null, "n0");
+        assertEquals(8, roots.size());
+        Set<String> seen = new HashSet<>();
+        collect(roots, seen, 8);
+        assertEquals(50, seen.size());
+    }
+
+    @Test
+    public void testZones() {
+        List<DiscoveryNode> nodes = nodes(12, "zone");
+        List<DeployRoute> roots = DeployRelayTree.build(nodes, 2, "zone", "n4");
+        Map<String, String> zones = new HashMap<>();
+        for (DiscoveryNode node : nodes) {
+            zones.put(node.id(), node.attributes().get("zone"));
+        }
+        // every zone is entered exactly once from outside
+        Map<String, Integer> inbound = new HashMap<>();
+        for (DeployRoute root : roots) {
+            increment(inbound, zones.get(root.getNodeId()));
+            countInbound(root, zones, inbound);
+        }
+        assertEquals(3, inbound.size());
+        for (Integer count : inbound.values()) {
+            assertEquals(1, count.intValue());
+        }
+        assertEquals("n4", roots.get(0).getNodeId());
+        Set<String> seen = new HashSet<>();
+        collect(roots, seen, Integer.MAX_VALUE);
+        assertEquals(12, seen.size());
+    }
+
+    private static List<DiscoveryNode> nodes(int n, String attribute) {
+        List<DiscoveryNode> nodes = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Map<String, String> attributes = attribute != null ?
+                    Collections.singletonMap(attribute, "z" + (i % 3)) : Collections.<String, String>emptyMap();
+            nodes.add(new DiscoveryNode("n" + i, "n" + i, DummyTransportAddress.INSTANCE, attributes, Version.CURRENT));
+        }
+        return nodes;
+    }
+
+    private static void collect(List<DeployRoute> routes, Set<String> seen, int maxFanOut) {
+        assertTrue(routes.size() <= maxFanOut);
+        for (DeployRoute route : routes) {
+            assertTrue(seen.add(route.getNodeId()));
+            collect(route.getChildren(), seen, maxFanOut);
+        }
+    }
+
+    private static void countInbound(DeployRoute route, Map<String, String> zones, Map<String, Integer> inbound) {
+        for (DeployRoute child : route.getChildren()) {
+            if (!zones.get(child.getNodeId()).equals(zones.get(route.getNodeId()))) {
+                increment(inbound, zones.get(child.getNodeId()));
+            }
+            countInbound(child, zones, inbound);
+        }
+    }
+
+    private static void increment(Map<String, Integer> map, String key) {
+        Integer count = map.get(key);
+        map.put(key, count == null ? 1 : count + 1);
+    }
+}
@@ -0,0 +1,142 @@
+package org.xbib.elasticsearch;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbib.elasticsearch.action.deploy.DeployNodeResponse;
+import org.xbib.elasticsearch.action.deploy.DeployRequest;
+import org.xbib.elasticsearch.action.deploy.DeployRequestBuilder;
+import org.xbib.elasticsearch.action.deploy.DeployResponse;
+import org.xbib.elasticsearch.action.deploy.DeployWave;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeployRollingTest extends AbstractNodeTestHelper {
+
+    // each node has its own plugins directory
+    private final Map<String, Path> plugins = new HashMap<>();
+
+    private String nodeId;
+
+    @Override
+    protected Node startNode(String id) {
+        nodeId = id;
+        return super.startNode(id);
+    }
+
+    @Override
+    protected Settings getNodeSettings() {
+        try {
+            if (!plugins.containsKey(nodeId)) {
+                plugins.put(nodeId, Files.createTempDirectory(Paths.get(getHome()).getParent(), "test-plugins-"));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("path.plugins", plugins.get(nodeId).toString())
+                .put("plugins.deploy.rolling.health_timeout", "1s")
+                .put("plugins.deploy.ready_timeout", "1s")
+                .build();
+    }
+
+    @Before
+    public void startMoreNodes() {
+        startNode("2");
+        startNode("3");
+        assertFalse(client("1").admin().cluster().prepareHealth()
+                .setWaitForNodes("3").setWaitForStatus(ClusterHealthStatus.GREEN)
+                .execute().actionGet().isTimedOut());
+    }
+
+    @Test
+    public void testWaves() throws Exception {
+        DeployRequest request = builder("rolling", DeployTest.DemoPlugin.class.getName()).request();
+        DeployResponse response = client("1").admin().cluster().execute(
+                org.xbib.elasticsearch.action.deploy.DeployAction.INSTANCE, request).actionGet();
+        assertEquals(3, response.getNodes().length);
+        for (DeployNodeResponse node : response.getNodes()) {
+            assertTrue(node.getSuccess());
+        }
+        assertEquals(2, response.getWaves().size());
+        DeployWave first = response.getWaves().get(0);
+        DeployWave second = response.getWaves().get(1);
+        assertEquals(1, first.getWave());
+        assertEquals(2, first.getNodes().size());
+        assertEquals(2, second.getWave());
+        assertEquals(1, second.getNodes().size());
+        assertFalse(first.getNodes().contains(second.getNodes().get(0)));
+        for (DeployWave wave : response.getWaves()) {
+            assertEquals(ClusterHealthStatus.GREEN, wave.getHealth());
+            assertTrue(wave.getTookInMillis() > 0L);
+        }
+        // the waves do not change the nodes of the request
+        assertEquals(3, request.nodesIds().length);
+        for (Path dir : plugins.values()) {
+            assertTrue(Files.isRegularFile(dir.resolve("deploy/plugins/rolling/lib/data.txt")));
+        }
+    }
+
+    @Test
+    public void testNotReadyStopsWaves() throws Exception {
+        // the plugin is installed, but its class is not found, so it is not ready
+        try {
+            builder("notready", "org.xbib.elasticsearch.NoSuchPlugin").setTaskId("notready").setWaveSize(1)
+                    .execute().actionGet();
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("wave 1 of 3 failed"));
+        }
+        assertEquals(1, installed("notready"));
+    }
+
+    @Test
+    public void testHealthStopsWaves() throws Exception {
+        // more replicas than nodes, the cluster health stays yellow
+        client("1").admin().indices().prepareCreate("yellow")
+                .setSettings(settingsBuilder().put("index.number_of_shards", 1).put("index.number_of_replicas", 3))
+                .execute().actionGet();
+        try {
+            builder("unhealthy", DeployTest.DemoPlugin.class.getName()).setTaskId("unhealthy").setWaveSize(1)
+                    .execute().actionGet();
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("cluster health is YELLOW after wave 1 of 3"));
+        }
+        assertEquals(1, installed("unhealthy"));
+    }
+
+    private DeployRequestBuilder builder(String name, String classname) throws IOException {
+        return new DeployRequestBuilder(client("1").admin().cluster())
+                .setName(name)
+                .setContentType("application/zip")
+                .setContent(new BytesArray(DeployTest.bundle("classname=" + classname + "\n", 1, false)))
+                .setWaveSize(2);
+    }
+
+    /**
+     * @return the number of nodes which installed the plugin
+     */
+    private int installed(String name) {
+        int count = 0;
+        for (Path dir : plugins.values()) {
+            count += Files.exists(dir.resolve("deploy/plugins/" + name)) ? 1 : 0;
+        }
+        return count;
+    }
+}
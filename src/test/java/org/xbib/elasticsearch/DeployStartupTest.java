@@ -0,0 +1,78 @@
+package org.xbib.elasticsearch;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+import org.xbib.elasticsearch.module.deploy.DeployRegistry;
+import org.xbib.elasticsearch.module.deploy.DeployService;
+import org.xbib.elasticsearch.module.deploy.DeployTask;
+import org.xbib.elasticsearch.module.deploy.DeployTaskService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeployStartupTest extends AbstractNodeTestHelper {
+
+    private Path plugins;
+
+    @Override
+    protected Settings getNodeSettings() {
+        try {
+            if (plugins == null) {
+                plugins = Files.createTempDirectory(Paths.get(getHome()).getParent(), "test-plugins-");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("path.plugins", plugins.toString())
+                .build();
+    }
+
+    @Test
+    public void testDependencies() throws Exception {
+        String demo = DeployTest.DemoPlugin.class.getName();
+        install("base", demo, "");
+        install("alpha", demo, "base");
+        install("missing", demo, "notinstalled");
+        // a cycle, both plugins are started without waiting for each other
+        install("x1", demo, "x2");
+        install("x2", demo, "x1");
+        install("bad", "org.xbib.elasticsearch.NoSuchPlugin", "");
+        install("needsbad", demo, "bad, base");
+        install("transitive", demo, "needsbad");
+        DeployService service = node("1").injector().getInstance(DeployService.class);
+        service.initializeInstalledPlugins();
+        DeployRegistry registry = service.getRegistry();
+        for (String name : new String[]{"base", "alpha", "missing", "x1", "x2"}) {
+            assertEquals(name, DeployRegistry.State.READY, registry.getState(name));
+        }
+        for (String name : new String[]{"bad", "needsbad", "transitive"}) {
+            assertEquals(name, DeployRegistry.State.FAILED, registry.getState(name));
+        }
+        DeployTaskService taskService = node("1").injector().getInstance(DeployTaskService.class);
+        assertTrue(task(taskService, "base").getEndTime() <= task(taskService, "alpha").getStartTime());
+        assertEquals(DeployTask.FAILED, task(taskService, "needsbad").getPhase());
+        assertEquals("dependency bad failed", task(taskService, "needsbad").getFailure());
+        assertEquals("dependency needsbad failed", task(taskService, "transitive").getFailure());
+    }
+
+    private static DeployTask task(DeployTaskService taskService, String name) {
+        return taskService.get(DeployService.STARTUP_TASK_PREFIX + name);
+    }
+
+    private void install(String name, String classname, String dependencies) throws IOException {
+        Path dir = plugins.resolve("deploy/plugins").resolve(name);
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("plugin-descriptor.properties"),
+                ("classname=" + classname + "\ndependencies=" + dependencies + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve(name + ".jar"), DeployTest.jar(1));
+    }
+}
@@ -0,0 +1,509 @@
+package org.xbib.elasticsearch;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.inject.AbstractModule;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.http.HttpServerTransport;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Assume;
+import org.junit.Test;
+import org.xbib.elasticsearch.action.deploy.DeployAction;
+import org.xbib.elasticsearch.action.deploy.DeployBundleResponse;
+import org.xbib.elasticsearch.action.deploy.DeployNodeResponse;
+import org.xbib.elasticsearch.action.deploy.DeployRequest;
+import org.xbib.elasticsearch.action.deploy.DeployRequestBuilder;
+import org.xbib.elasticsearch.action.deploy.DeployResponse;
+import org.xbib.elasticsearch.module.deploy.DeployIndex;
+import org.xbib.elasticsearch.module.deploy.DeployRegistry;
+import org.xbib.elasticsearch.module.deploy.DeployService;
+import org.xbib.elasticsearch.module.deploy.DeployStore;
+import org.xbib.elasticsearch.module.deploy.DeployTask;
+import org.xbib.elasticsearch.module.deploy.DeployTaskService;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DeployTest extends AbstractNodeTestHelper {
+
+    private static final String MARKER = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private Path plugins;
+
+    public static class DemoPlugin extends Plugin {
+
+        @Override
+        public String name() {
+            return "demo";
+        }
+
+        @Override
+        public String description() {
+            return "demo";
+        }
+    }
+
+    public static class BrokenPlugin extends Plugin {
+
+        public BrokenPlugin() {
+            throw new IllegalStateException("broken");
+        }
+
+        @Override
+        public String name() {
+            return "broken";
+        }
+
+        @Override
+        public String description() {
+            return "broken";
+        }
+    }
+
+    /**
+     * A plugin with a REST action at /_lazydemo
+     */
+    public static class RestPlugin extends Plugin {
+
+        @Override
+        public String name() {
+            return "rest";
+        }
+
+        @Override
+        public String description() {
+            return "rest";
+        }
+
+        @Override
+        public Collection<Module> nodeModules() {
+            return Collections.<Module>singletonList(new AbstractModule() {
+                @Override
+                protected void configure() {
+                    bind(LazyDemoHandler.class).asEagerSingleton();
+                }
+            });
+        }
+    }
+
+    public static class LazyDemoHandler implements RestHandler {
+
+        @Inject
+        public LazyDemoHandler(RestController controller) {
+            controller.registerHandler(RestRequest.Method.GET, "/_lazydemo", this);
+        }
+
+        @Override
+        public void handleRequest(RestRequest request, RestChannel channel) {
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, "lazydemo"));
+        }
+    }
+
+    @Override
+    protected Settings getNodeSettings() {
+        try {
+            if (plugins == null) {
+                plugins = Files.createTempDirectory(Paths.get(getHome()).getParent(), "test-plugins-");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("path.plugins", plugins.toString())
+                .put("plugins.deploy.lazy.idle_timeout", "1s")
+                .put("http.enabled", true)
+                .put("http.port", "9500-9600")
+                .put("plugins.deploy.upload.max_size", "1mb")
+                .build();
+    }
+
+    @Test
+    public void testFailedInstallKeepsInstalledVersion() throws Exception {
+        assertTrue(success(deploy("demo", bundle(1, false))));
+        Path link = plugins.resolve("deploy/plugins/demo");
+        assertTrue(Files.isSymbolicLink(link));
+        Path installed = Files.readSymbolicLink(link);
+        // the central directory is intact, the data of an entry is not
+        assertFalse(success(deploy("demo", bundle(2, true))));
+        assertEquals(installed, Files.readSymbolicLink(link));
+        assertTrue(Files.isRegularFile(link.resolve("plugin-descriptor.properties")));
+        assertTrue(Files.isRegularFile(link.resolve("lib/data.txt")));
+    }
+
+    @Test
+    public void testFailedAddRollsBack() throws Exception {
+        assertTrue(success(deploy("rollback", bundle(1, false))));
+        Path link = plugins.resolve("deploy/plugins/rollback");
+        Path installed = link.toRealPath();
+        // the new version is activated, but its plugin class can not be instantiated
+        assertFalse(success(deploy("rollback", bundle("classname=" + BrokenPlugin.class.getName() + "\n", 2, false))));
+        assertEquals(installed, link.toRealPath());
+        assertEquals(MARKER + 1, new String(Files.readAllBytes(link.resolve("lib/data.txt")), StandardCharsets.UTF_8));
+        DeployService service = node("1").injector().getInstance(DeployService.class);
+        assertEquals(DeployRegistry.State.READY, service.getRegistry().getState("rollback"));
+        assertTrue(service.getRegistry().getPlugin("rollback") instanceof DemoPlugin);
+        // the previous version is removed only after a successful replace
+        assertTrue(success(deploy("rollback", bundle(3, false))));
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (Files.exists(installed) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100L);
+        }
+        assertFalse(Files.exists(installed));
+    }
+
+    @Test
+    public void testDeltaInstall() throws Exception {
+        assertTrue(success(deploy("delta", bundle(1, false))));
+        byte[] b = bundle(2, false);
+        assertTrue(success(deploy("delta", b)));
+        Path link = plugins.resolve("deploy/plugins/delta");
+        assertEquals(MARKER + 2, new String(Files.readAllBytes(link.resolve("lib/data.txt")), StandardCharsets.UTF_8));
+        // the rebuilt bundle is found by the digest of the deployed bundle, and stored under its own digest
+        DeployStore store = node("1").injector().getInstance(DeployStore.class);
+        String digest = DeployStore.digest(new BytesArray(b));
+        assertTrue(store.contains(digest));
+        assertNotEquals(digest, store.getFile(digest).getName());
+        assertEquals(store.getFile(digest).getName(), DeployStore.digest(store.getFile(digest)));
+    }
+
+    @Test
+    public void testRedeployRewritesChangedEntries() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("plugin-descriptor.properties",
+                ("classname=" + DemoPlugin.class.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+        entries.put("demo.jar", jar(1));
+        entries.put("lib/common.jar", jar(0, 65536));
+        entries.put("lib/other.jar", jar(3));
+        assertTrue(success(deploy("incremental", DeployDeltaTest.zip(entries), "incremental1")));
+        Path link = plugins.resolve("deploy/plugins/incremental");
+        Map<String, Object> fileKeys = new HashMap<>();
+        for (String name : entries.keySet()) {
+            fileKeys.put(name, Files.readAttributes(link.resolve(name), BasicFileAttributes.class).fileKey());
+        }
+        entries.put("demo.jar", jar(2));
+        assertTrue(success(deploy("incremental", DeployDeltaTest.zip(entries), "incremental2")));
+        DeployTask task = node("1").injector().getInstance(DeployTaskService.class).get("incremental2");
+        assertEquals(1, task.getEntriesUnpacked());
+        assertEquals(3, task.getEntriesSkipped());
+        // unchanged entries are the same files as in the previous version, only the changed jar is written
+        for (String name : entries.keySet()) {
+            Object fileKey = Files.readAttributes(link.resolve(name), BasicFileAttributes.class).fileKey();
+            if (name.equals("demo.jar")) {
+                assertNotEquals(name, fileKeys.get(name), fileKey);
+            } else {
+                assertEquals(name, fileKeys.get(name), fileKey);
+            }
+        }
+        assertArrayEquals(jar(2), Files.readAllBytes(link.resolve("demo.jar")));
+    }
+
+    @Test
+    public void testFileContentIsUnmappedAfterDeploy() throws Exception {
+        Path maps = Paths.get("/proc/self/maps");
+        Assume.assumeTrue(Files.isReadable(maps));
+        Path file = Files.write(Files.createTempFile(plugins.getParent(), "mapped-", ".zip"), bundle(1, false));
+        try {
+            DeployRequest request = new DeployRequestBuilder(client("1").admin().cluster())
+                    .setName("mapped")
+                    .setContentType("application/zip")
+                    .setFile(file.toFile(), null)
+                    .request();
+            // mapped once
+            assertSame(request.getContent(), request.getContent());
+            assertTrue(new String(Files.readAllBytes(maps), StandardCharsets.UTF_8).contains(file.toString()));
+            DeployResponse response = client("1").admin().cluster().execute(DeployAction.INSTANCE, request).actionGet();
+            assertTrue(success(response));
+            assertFalse(new String(Files.readAllBytes(maps), StandardCharsets.UTF_8).contains(file.toString()));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        assertEquals(200, upload("upload", bundle(1, false)));
+        assertTrue(Files.isRegularFile(plugins.resolve("deploy/plugins/upload/lib/data.txt")));
+        // the spooled upload is deleted after the deploy
+        String[] uploads = plugins.resolve("deploy/uploads").toFile().list();
+        assertEquals(0, uploads == null ? 0 : uploads.length);
+    }
+
+    @Test
+    public void testUploadTooLarge() throws Exception {
+        assertEquals(413, upload("large", new byte[2 * 1024 * 1024]));
+        assertFalse(Files.exists(plugins.resolve("deploy/plugins/large")));
+    }
+
+    @Test
+    public void testThrottleTimeInPluginList() throws Exception {
+        client("1").admin().cluster().prepareUpdateSettings()
+                .setTransientSettings(settingsBuilder().put("plugins.deploy.max_bytes_per_sec", "100kb"))
+                .execute().actionGet();
+        assertTrue(success(deploy("throttled", bundle(1, false))));
+        DeployResponse response = new DeployRequestBuilder(client("1").admin().cluster())
+                .setRead(true)
+                .execute().actionGet();
+        assertTrue(response.getNodes()[0].getPlugins().containsKey("throttled"));
+        assertTrue(response.getNodes()[0].getThrottleTimeInNanos() > 0L);
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        response.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        assertTrue(builder.endObject().string().contains("\"throttle_time_in_millis\""));
+    }
+
+    @Test
+    public void testClassesLoaded() throws Exception {
+        // the demo plugin class is loaded by the parent class loader
+        assertTrue(success(deploy("parent", bundle(1, false), "parent")));
+        DeployTaskService taskService = node("1").injector().getInstance(DeployTaskService.class);
+        assertEquals(0, taskService.get("parent").getClassesLoaded());
+        assertTrue(success(deploy("compiled", compiledBundle(), "compiled")));
+        assertEquals(1, taskService.get("compiled").getClassesLoaded());
+    }
+
+    @Test
+    public void testIndexIsWritten() throws Exception {
+        byte[] b = bundle(1, false);
+        assertTrue(success(deploy("indexed", b)));
+        File dir = plugins.resolve("deploy/plugins/indexed").toRealPath().toFile();
+        DeployIndex index = DeployIndex.read(dir);
+        assertNotNull(index);
+        assertEquals(DemoPlugin.class.getName(), index.getClassname());
+        assertEquals(DeployStore.digest(new BytesArray(b)), index.getDigest());
+        assertEquals(2, index.getJars().size());
+        assertTrue(index.isValidFor(dir, index.getDigest()));
+    }
+
+    @Test
+    public void testSharedJarIsLinked() throws Exception {
+        assertTrue(success(deploy("first", bundle(1, false), "first")));
+        assertTrue(success(deploy("second", bundle(2, false), "second")));
+        DeployTaskService taskService = node("1").injector().getInstance(DeployTaskService.class);
+        assertEquals(0, taskService.get("first").getJarsLinked());
+        assertEquals(1, taskService.get("second").getJarsLinked());
+        assertTrue(Files.isSameFile(plugins.resolve("deploy/plugins/first/lib/common.jar"),
+                plugins.resolve("deploy/plugins/second/lib/common.jar")));
+    }
+
+    @Test
+    public void testLazyPluginIsPassivatedWhenReleased() throws Exception {
+        assertTrue(success(deploy("lazy", bundle("lazy=true\n", 1, false))));
+        DeployService service = node("1").injector().getInstance(DeployService.class);
+        assertEquals(DeployRegistry.State.INACTIVE, service.getRegistry().getState("lazy"));
+        assertNull(service.getRegistry().getPlugin("lazy"));
+        assertNotNull(service.acquire("lazy"));
+        assertEquals(DeployRegistry.State.READY, service.getRegistry().getState("lazy"));
+        // acquired for longer than the idle timeout
+        Thread.sleep(3000L);
+        assertEquals(DeployRegistry.State.READY, service.getRegistry().getState("lazy"));
+        service.release("lazy");
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (service.getRegistry().getState("lazy") != DeployRegistry.State.INACTIVE &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(100L);
+        }
+        assertEquals(DeployRegistry.State.INACTIVE, service.getRegistry().getState("lazy"));
+        assertNull(service.getRegistry().getPlugin("lazy"));
+    }
+
+    @Test
+    public void testLazyPluginIsActivatedByRestRequest() throws Exception {
+        assertTrue(success(deploy("lazyrest", bundle("classname=" + RestPlugin.class.getName() +
+                "\nlazy=true\nrest_paths=/_lazydemo\n", 1, false))));
+        DeployService service = node("1").injector().getInstance(DeployService.class);
+        assertEquals(DeployRegistry.State.INACTIVE, service.getRegistry().getState("lazyrest"));
+        // the handler is registered when the first request activates the plugin
+        InetSocketTransportAddress address = (InetSocketTransportAddress) node("1").injector()
+                .getInstance(HttpServerTransport.class).boundAddress().publishAddress();
+        URL url = new URL("http", address.address().getHostString(), address.address().getPort(), "/_lazydemo");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            assertEquals("lazydemo", Streams.copyToString(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        }
+        assertEquals(DeployRegistry.State.READY, service.getRegistry().getState("lazyrest"));
+    }
+
+    @Test
+    public void testBatchReportsEachBundle() throws Exception {
+        DeployRequestBuilder builder = new DeployRequestBuilder(client("1").admin().cluster());
+        for (int i = 0; i < 5; i++) {
+            builder.addBundle(new DeployRequest()
+                    .setName("batch" + i)
+                    .setContentType("application/zip")
+                    .setContent(new BytesArray(bundle(i, i == 3))));
+        }
+        DeployResponse response = builder.execute().actionGet();
+        assertEquals(1, response.getNodes().length);
+        List<DeployBundleResponse> bundles = response.getNodes()[0].getBundles();
+        assertEquals(5, bundles.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("batch" + i, bundles.get(i).getName());
+            assertEquals(i != 3, bundles.get(i).getSuccess());
+            assertEquals("batch" + i, i != 3, Files.isDirectory(plugins.resolve("deploy/plugins/batch" + i)));
+        }
+    }
+
+    private DeployResponse deploy(String name, byte[] bundle) throws IOException {
+        return deploy(name, bundle, null);
+    }
+
+    private DeployResponse deploy(String name, byte[] bundle, String taskId) throws IOException {
+        return new DeployRequestBuilder(client("1").admin().cluster())
+                .setName(name)
+                .setContentType("application/zip")
+                .setContent(new BytesArray(bundle))
+                .setTaskId(taskId)
+                .execute().actionGet();
+    }
+
+    /**
+     * A bundle with a plugin class which is only in the bundle.
+     */
+    private byte[] compiledBundle() throws Exception {
+        Path src = Files.createTempDirectory(plugins, "src-");
+        Path source = src.resolve("compiled/CompiledPlugin.java");
+        Files.createDirectories(source.getParent());
+        Files.write(source, ("package compiled;\n" +
+                "public class CompiledPlugin extends org.elasticsearch.plugins.Plugin {\n" +
+                "    public String name() { return \"compiled\"; }\n" +
+                "    public String description() { return \"compiled\"; }\n" +
+                "}\n").getBytes(StandardCharsets.UTF_8));
+        String classpath = Paths.get(Plugin.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .toString();
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertEquals(0, compiler.run(null, null, null, "-classpath", classpath, "-d", src.toString(),
+                source.toString()));
+        ByteArrayOutputStream jar = new ByteArrayOutputStream();
+        try (JarOutputStream out = new JarOutputStream(jar)) {
+            out.putNextEntry(new ZipEntry("compiled/CompiledPlugin.class"));
+            out.write(Files.readAllBytes(src.resolve("compiled/CompiledPlugin.class")));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("plugin-descriptor.properties"));
+            zip.write("classname=compiled.CompiledPlugin\n".getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("compiled.jar"));
+            zip.write(jar.toByteArray());
+        }
+        return out.toByteArray();
+    }
+
+    private int upload(String name, byte[] b) throws IOException {
+        InetSocketTransportAddress address = (InetSocketTransportAddress) node("1").injector()
+                .getInstance(HttpServerTransport.class).boundAddress().publishAddress();
+        URL url = new URL("http", address.address().getHostString(), address.address().getPort(),
+                "/_deploy?name=" + name + "&wait_for_completion=true");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("PUT");
+        connection.setRequestProperty("Accept", "application/zip");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(b);
+        }
+        return connection.getResponseCode();
+    }
+
+    private static boolean success(DeployResponse response) {
+        boolean success = response.getNodes().length > 0;
+        for (DeployNodeResponse node : response.getNodes()) {
+            success = success && node.getSuccess();
+        }
+        return success;
+    }
+
+    static byte[] bundle(int seed, boolean corrupt) throws IOException {
+        return bundle("", seed, corrupt);
+    }
+
+    static byte[] bundle(String properties, int seed, boolean corrupt) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("plugin-descriptor.properties"));
+            zip.write(("classname=" + DemoPlugin.class.getName() + "\n" + properties).getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("demo.jar"));
+            zip.write(jar(seed));
+            zip.putNextEntry(new ZipEntry("lib/common.jar"));
+            zip.write(jar(0, 65536));
+            byte[] data = (MARKER + seed).getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            ZipEntry entry = new ZipEntry("lib/data.txt");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            zip.write(data);
+        }
+        byte[] b = out.toByteArray();
+        if (corrupt) {
+            String s = new String(b, StandardCharsets.ISO_8859_1);
+            b[s.indexOf(MARKER)] ^= 1;
+        }
+        return b;
+    }
+
+    static byte[] jar(int seed) throws IOException {
+        return jar(seed, 4096);
+    }
+
+    static byte[] jar(int seed, int size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JarOutputStream jar = new JarOutputStream(out)) {
+            // a fixed time, so jars with the same seed are equal
+            ZipEntry entry = new ZipEntry("random.bin");
+            entry.setTime(1000000000000L);
+            jar.putNextEntry(entry);
+            byte[] b = new byte[size];
+            new Random(seed).nextBytes(b);
+            jar.write(b);
+        }
+        return out.toByteArray();
+    }
+}
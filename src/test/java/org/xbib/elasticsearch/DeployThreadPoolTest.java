@@ -0,0 +1,111 @@
+package org.xbib.elasticsearch;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.plugins.Plugin;
+import org.junit.Test;
+import org.xbib.elasticsearch.action.deploy.DeployRequestBuilder;
+import org.xbib.elasticsearch.action.deploy.DeployResponse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeployThreadPoolTest extends AbstractNodeTestHelper {
+
+    private static final CountDownLatch started = new CountDownLatch(1);
+
+    private static final CountDownLatch release = new CountDownLatch(1);
+
+    private Path plugins;
+
+    /**
+     * A plugin which blocks the install in its constructor until the test releases it.
+     */
+    public static class BlockingPlugin extends Plugin {
+
+        public BlockingPlugin() throws InterruptedException {
+            started.countDown();
+            release.await(30, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public String name() {
+            return "blocking";
+        }
+
+        @Override
+        public String description() {
+            return "blocking";
+        }
+    }
+
+    @Override
+    protected Settings getNodeSettings() {
+        try {
+            if (plugins == null) {
+                plugins = Files.createTempDirectory(Paths.get(getHome()).getParent(), "test-plugins-");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // one install at a time, one more may wait
+        return settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("path.plugins", plugins.toString())
+                .put("threadpool.deploy.size", 1)
+                .put("threadpool.deploy.queue_size", 1)
+                .build();
+    }
+
+    @Test
+    public void testReadsDoNotWaitForInstalls() throws Exception {
+        ListenableActionFuture<DeployResponse> blocking = install("blocking", BlockingPlugin.class.getName());
+        ListenableActionFuture<DeployResponse> queued = null;
+        try {
+            // the install occupies the deploy pool
+            assertTrue(started.await(30, TimeUnit.SECONDS));
+            DeployResponse response = new DeployRequestBuilder(client("1").admin().cluster())
+                    .setRead(true)
+                    .execute().actionGet(10, TimeUnit.SECONDS);
+            assertEquals(1, response.getNodes().length);
+            assertNotNull(response.getNodes()[0].getStates());
+            // the next install waits in the queue, the one after is rejected
+            queued = install("queued", DeployTest.DemoPlugin.class.getName());
+            try {
+                install("rejected", DeployTest.DemoPlugin.class.getName()).actionGet(10, TimeUnit.SECONDS);
+                fail();
+            } catch (Exception e) {
+                assertTrue(e.toString(), ExceptionsHelper.unwrapCause(e) instanceof EsRejectedExecutionException);
+            }
+        } finally {
+            release.countDown();
+        }
+        assertTrue(blocking.actionGet(30, TimeUnit.SECONDS).getNodes()[0].getSuccess());
+        assertTrue(queued.actionGet(30, TimeUnit.SECONDS).getNodes()[0].getSuccess());
+        assertTrue(Files.isDirectory(plugins.resolve("deploy/plugins/queued")));
+        assertFalse(Files.exists(plugins.resolve("deploy/plugins/rejected")));
+    }
+
+    private ListenableActionFuture<DeployResponse> install(String name, String classname) throws IOException {
+        return new DeployRequestBuilder(client("1").admin().cluster())
+                .setName(name)
+                .setContentType("application/zip")
+                .setContent(new BytesArray(DeployTest.bundle("classname=" + classname + "\n", 1, false)))
+                .setTaskId(name)
+                .execute();
+    }
+}
@@ -0,0 +1,170 @@
+package org.xbib.elasticsearch;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbib.elasticsearch.module.deploy.DeployTransferService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeployTransferServiceTest {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private Path dir;
+
+    private DeployTransferService service;
+
+    @Before
+    public void createService() throws IOException {
+        dir = Files.createTempDirectory("test-transfer-");
+        service = service(DeployTransferService.FSYNC_CHUNK);
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testOutOfOrderChunks() throws Exception {
+        byte[] b = new byte[10 * CHUNK_SIZE + 123];
+        new Random(1).nextBytes(b);
+        List<Integer> offsets = new ArrayList<>();
+        for (int offset = 0; offset < b.length; offset += CHUNK_SIZE) {
+            offsets.add(offset);
+        }
+        Collections.shuffle(offsets, new Random(2));
+        long received = 0L;
+        for (int offset : offsets) {
+            received = service.receive("t1", offset, new BytesArray(b, offset, Math.min(CHUNK_SIZE, b.length - offset)));
+        }
+        assertEquals(b.length, received);
+        File file = service.finish("t1", b.length);
+        assertEquals("t1.part", file.getName());
+        assertArrayEquals(b, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testIncompleteTransfer() throws Exception {
+        byte[] b = new byte[3 * CHUNK_SIZE];
+        new Random(1).nextBytes(b);
+        // the chunk in the middle is missing
+        service.receive("t2", 2 * CHUNK_SIZE, new BytesArray(b, 2 * CHUNK_SIZE, CHUNK_SIZE));
+        service.receive("t2", 0, new BytesArray(b, 0, CHUNK_SIZE));
+        try {
+            service.finish("t2", b.length);
+            fail();
+        } catch (IOException e) {
+            assertEquals("incomplete transfer t2: expected " + b.length + " bytes, received " + 2 * CHUNK_SIZE,
+                    e.getMessage());
+        }
+        assertFalse(part("t2").exists());
+        try {
+            service.finish("t2", b.length);
+            fail();
+        } catch (IOException e) {
+            assertEquals("unknown transfer t2", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDuplicateChunk() throws Exception {
+        byte[] b = new byte[3 * CHUNK_SIZE];
+        new Random(1).nextBytes(b);
+        service.receive("t4", 0, new BytesArray(b, 0, CHUNK_SIZE));
+        service.receive("t4", CHUNK_SIZE, new BytesArray(b, CHUNK_SIZE, CHUNK_SIZE));
+        // a retried chunk is counted once, so the missing chunk is not hidden by it
+        assertEquals(2 * CHUNK_SIZE, service.receive("t4", 0, new BytesArray(b, 0, CHUNK_SIZE)));
+        try {
+            service.finish("t4", b.length);
+            fail();
+        } catch (IOException e) {
+            assertEquals("incomplete transfer t4: expected " + b.length + " bytes, received " + 2 * CHUNK_SIZE,
+                    e.getMessage());
+        }
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        service.receive("t3", 0, new BytesArray(new byte[CHUNK_SIZE]));
+        assertTrue(part("t3").exists());
+        service.abort("t3");
+        assertFalse(part("t3").exists());
+        // aborting twice is harmless
+        service.abort("t3");
+    }
+
+    @Test
+    public void testFsyncPolicy() throws Exception {
+        byte[] b = new byte[3 * CHUNK_SIZE];
+        new Random(1).nextBytes(b);
+        // the number of fsyncs for a transfer of three chunks, and for content received in one piece
+        assertEquals(0L, fsyncs(service(DeployTransferService.FSYNC_NONE), "none", b));
+        assertEquals(1L, fsyncs(service(DeployTransferService.FSYNC_END), "end", b));
+        assertEquals(3L, fsyncs(service(DeployTransferService.FSYNC_CHUNK), "chunk", b));
+        try {
+            service("always");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("unknown fsync policy [always], expected one of [none, end, chunk]", e.getMessage());
+        }
+    }
+
+    private long fsyncs(DeployTransferService service, String transferId, byte[] b) throws IOException {
+        for (int offset = 0; offset < b.length; offset += CHUNK_SIZE) {
+            service.receive(transferId, offset, new BytesArray(b, offset, CHUNK_SIZE));
+        }
+        File file = service.finish(transferId, b.length);
+        assertArrayEquals(b, Files.readAllBytes(file.toPath()));
+        long count = service.getFsyncCount();
+        service.write(dir.resolve(transferId + ".zip").toFile(), new BytesArray(b));
+        assertEquals(transferId, count == 0L ? 0L : 1L, service.getFsyncCount() - count);
+        return count;
+    }
+
+    private DeployTransferService service(String fsync) {
+        Settings settings = settingsBuilder()
+                .put("path.home", dir.toString())
+                .put("path.plugins", dir.resolve("plugins").toString())
+                .put("plugins.deploy.transfer.fsync", fsync)
+                .build();
+        return new DeployTransferService(settings, new Environment(settings));
+    }
+
+    private File part(String transferId) {
+        return dir.resolve("plugins/deploy/transfers/" + transferId + ".part").toFile();
+    }
+}
@@ -0,0 +1,264 @@
+package org.xbib.elasticsearch;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.transport.FutureTransportResponseHandler;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.transport.TransportResponse;
+import org.elasticsearch.transport.TransportService;
+import org.junit.Test;
+import org.xbib.elasticsearch.action.deploy.DeployAction;
+import org.xbib.elasticsearch.action.deploy.DeployChunkRequest;
+import org.xbib.elasticsearch.action.deploy.DeployRequest;
+import org.xbib.elasticsearch.action.deploy.DeployRequestBuilder;
+import org.xbib.elasticsearch.action.deploy.DeployResponse;
+import org.xbib.elasticsearch.action.deploy.TransportDeployAction;
+import org.xbib.elasticsearch.module.deploy.DeployStore;
+import org.xbib.elasticsearch.module.deploy.DeployTask;
+import org.xbib.elasticsearch.module.deploy.DeployTaskService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeployTransferTest extends AbstractNodeTestHelper {
+
+    private Path plugins;
+
+    protected String getTransferMode() {
+        return "push";
+    }
+
+    @Override
+    protected Settings getNodeSettings() {
+        try {
+            if (plugins == null) {
+                plugins = Files.createTempDirectory(Paths.get(getHome()).getParent(), "test-plugins-");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("path.plugins", plugins.toString())
+                .put("plugins.deploy.transfer.mode", getTransferMode())
+                .put("plugins.deploy.transfer.chunk_size", "1kb")
+                .put("plugins.deploy.max_bytes_per_sec", "1mb")
+                .build();
+    }
+
+    @Test
+    public void testChunkedTransfer() throws Exception {
+        byte[] b = DeployTest.bundle(1, false);
+        DeployResponse response = new DeployRequestBuilder(client("1").admin().cluster())
+                .setName("chunked")
+                .setContentType("application/zip")
+                .setContent(new BytesArray(b))
+                .setTaskId("chunked")
+                .execute().actionGet();
+        assertTrue(response.getNodes()[0].getSuccess());
+        assertTrue(Files.isRegularFile(plugins.resolve("deploy/plugins/chunked/lib/data.txt")));
+        DeployTask task = node("1").injector().getInstance(DeployTaskService.class).get("chunked");
+        assertEquals(b.length, task.getBytesReceived());
+        assertTrue(task.getThrottleTimeInNanos() > 0L);
+        String[] transfers = plugins.resolve("deploy/transfers").toFile().list();
+        assertEquals(0, transfers == null ? 0 : transfers.length);
+    }
+
+    @Test
+    public void testSharedPath() throws Exception {
+        byte[] b = DeployTest.bundle(1, false);
+        Path bundle = Files.write(Files.createTempFile(plugins.getParent(), "shared-", ".zip"), b);
+        try {
+            DeployResponse response = new DeployRequestBuilder(client("1").admin().cluster())
+                    .setName("shared")
+                    .setContentType("application/zip")
+                    .setPath(node("1").settings(), bundle.toString())
+                    .setShared(true)
+                    .setTaskId("shared")
+                    .execute().actionGet();
+            assertTrue(response.getNodes()[0].getSuccess());
+        } finally {
+            Files.delete(bundle);
+        }
+        assertTrue(Files.isRegularFile(plugins.resolve("deploy/plugins/shared/lib/data.txt")));
+        // the node copies the bundle from the path, nothing is transferred
+        DeployTask task = node("1").injector().getInstance(DeployTaskService.class).get("shared");
+        assertEquals(0L, task.getBytesReceived());
+        assertEquals(b.length, task.getBytesWritten());
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        startNode("2");
+        assertFalse(client("1").admin().cluster().prepareHealth()
+                .setWaitForNodes("2").setWaitForStatus(ClusterHealthStatus.GREEN)
+                .execute().actionGet().isTimedOut());
+        // chunks must cross the wire, requests to the local node are not serialized
+        DiscoveryNode target = node("1").injector().getInstance(ClusterService.class).localNode();
+        TransportService transportService = node("2").injector().getInstance(TransportService.class);
+        BytesReference content = new BytesArray(DeployTest.jar(1));
+        long checksum = DeployChunkRequest.checksum(content);
+        Path part = plugins.resolve("deploy/transfers/corrupt.part");
+        ChunkResponse response = transportService.submitRequest(target, TransportDeployAction.CHUNK_ACTION_NAME,
+                new ChunkRequest("corrupt", content, checksum), new ChunkResponseHandler()).txGet();
+        assertEquals(content.length(), response.received);
+        assertTrue(Files.isRegularFile(part));
+        try {
+            transportService.submitRequest(target, TransportDeployAction.CHUNK_ACTION_NAME,
+                    new ChunkRequest("corrupt", content, checksum + 1), new ChunkResponseHandler()).txGet();
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getCause().getMessage().startsWith("checksum mismatch in chunk at offset 0 of transfer corrupt"));
+        }
+        // the transfer is aborted
+        assertFalse(Files.exists(part));
+    }
+
+    @Test
+    public void testSameDigestIsPresent() throws Exception {
+        // started before anything is deployed, the plugins directory is shared with the first node
+        startNode("2");
+        assertFalse(client("1").admin().cluster().prepareHealth()
+                .setWaitForNodes("2").setWaitForStatus(ClusterHealthStatus.GREEN)
+                .execute().actionGet().isTimedOut());
+        DiscoveryNode target = node("1").injector().getInstance(ClusterService.class).localNode();
+        byte[] b = DeployTest.bundle(1, false);
+        for (String taskId : new String[]{"first", "second"}) {
+            DeployRequest request = new DeployRequestBuilder(client("1").admin().cluster())
+                    .setName("same")
+                    .setContentType("application/zip")
+                    .setContent(new BytesArray(b))
+                    .setTaskId(taskId)
+                    .request();
+            request.nodesIds(target.id());
+            DeployResponse response = client("1").admin().cluster().execute(DeployAction.INSTANCE, request).actionGet();
+            assertTrue(response.getNodes()[0].getSuccess());
+        }
+        DeployTaskService taskService = node("1").injector().getInstance(DeployTaskService.class);
+        assertEquals(b.length, taskService.get("first").getBytesReceived());
+        // the node holds the digest, nothing is transferred again
+        assertEquals(0L, taskService.get("second").getBytesReceived());
+        TransportService transportService = node("2").injector().getInstance(TransportService.class);
+        String digest = DeployStore.digest(new BytesArray(b));
+        assertTrue(transportService.submitRequest(target, TransportDeployAction.PROBE_ACTION_NAME,
+                new ProbeRequest("same", digest), new ProbeResponseHandler()).txGet().present);
+        // only a digest is used as a file name in the store
+        try {
+            transportService.submitRequest(target, TransportDeployAction.PROBE_ACTION_NAME,
+                    new ProbeRequest("same", "../../" + digest), new ProbeResponseHandler()).txGet();
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getCause().getMessage().startsWith("invalid digest [../../"));
+        }
+    }
+
+    /**
+     * A probe in the wire format of {@link org.xbib.elasticsearch.action.deploy.DeployProbeRequest},
+     * with a digest of our choice.
+     */
+    private static class ProbeRequest extends TransportRequest {
+
+        private final String name;
+
+        private final String digest;
+
+        ProbeRequest(String name, String digest) {
+            this.name = name;
+            this.digest = digest;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(name);
+            out.writeString(digest);
+            out.writeBoolean(false);
+            out.writeOptionalString(null);
+        }
+    }
+
+    private static class ProbeResponse extends TransportResponse {
+
+        private boolean present;
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            present = in.readBoolean();
+            // no base digest, no manifest
+            in.readOptionalString();
+            in.readBoolean();
+        }
+    }
+
+    private static class ProbeResponseHandler extends FutureTransportResponseHandler<ProbeResponse> {
+
+        @Override
+        public ProbeResponse newInstance() {
+            return new ProbeResponse();
+        }
+    }
+
+    /**
+     * A chunk in the wire format of {@link DeployChunkRequest}, with a checksum of our choice.
+     */
+    private static class ChunkRequest extends TransportRequest {
+
+        private final String transferId;
+
+        private final BytesReference content;
+
+        private final long checksum;
+
+        ChunkRequest(String transferId, BytesReference content, long checksum) {
+            this.transferId = transferId;
+            this.content = content;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(transferId);
+            out.writeString(transferId);
+            out.writeString("corrupt");
+            out.writeVLong(0L);
+            out.writeLong(checksum);
+            out.writeBytesReference(content);
+            out.writeVInt(0);
+        }
+    }
+
+    private static class ChunkResponse extends TransportResponse {
+
+        private long received;
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            received = in.readVLong();
+        }
+    }
+
+    private static class ChunkResponseHandler extends FutureTransportResponseHandler<ChunkResponse> {
+
+        @Override
+        public ChunkResponse newInstance() {
+            return new ChunkResponse();
+        }
+    }
+}
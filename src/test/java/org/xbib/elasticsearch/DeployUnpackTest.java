@@ -0,0 +1,130 @@
+package org.xbib.elasticsearch;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.threadpool.ThreadPoolStats;
+import org.junit.Test;
+import org.xbib.elasticsearch.action.deploy.DeployRequestBuilder;
+import org.xbib.elasticsearch.action.deploy.DeployResponse;
+import org.xbib.elasticsearch.module.deploy.DeployService;
+import org.xbib.elasticsearch.module.deploy.DeployTask;
+import org.xbib.elasticsearch.module.deploy.DeployTaskService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeployUnpackTest extends AbstractNodeTestHelper {
+
+    private static final int ENTRIES = 32;
+
+    private Path plugins;
+
+    @Override
+    protected Settings getNodeSettings() {
+        try {
+            if (plugins == null) {
+                plugins = Files.createTempDirectory(Paths.get(getHome()).getParent(), "test-plugins-");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("path.plugins", plugins.toString())
+                .put("threadpool.deploy_unpack.size", 3)
+                .put("threadpool.deploy_unpack.queue_size", 1)
+                .build();
+    }
+
+    @Test
+    public void testParallelExtraction() throws Exception {
+        DeployTask task = deploy("parallel");
+        assertEquals(ENTRIES + 1, task.getEntriesUnpacked());
+        // two workers of the pool extract next to the calling thread
+        ThreadPoolStats.Stats stats = stats();
+        assertEquals(2, stats.getLargest());
+        assertEquals(0L, stats.getRejected());
+        assertExtracted("parallel");
+    }
+
+    @Test
+    public void testExtractionWithBusyPool() throws Exception {
+        ThreadPool threadPool = node("1").injector().getInstance(ThreadPool.class);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            // all threads are busy and the queue is full
+            for (int i = 0; i < 4; i++) {
+                threadPool.executor(DeployService.UNPACK_THREAD_POOL).execute(blocker);
+            }
+            // the calling thread extracts alone
+            DeployTask task = deploy("busy");
+            assertEquals(ENTRIES + 1, task.getEntriesUnpacked());
+            assertEquals(1L, stats().getRejected());
+            assertExtracted("busy");
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private DeployTask deploy(String name) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("plugin-descriptor.properties",
+                ("classname=" + DeployTest.DemoPlugin.class.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < ENTRIES; i++) {
+            entries.put("lib/entry" + i + ".jar", DeployTest.jar(i, 64 * 1024));
+        }
+        long t0 = System.nanoTime();
+        DeployResponse response = new DeployRequestBuilder(client("1").admin().cluster())
+                .setName(name)
+                .setContentType("application/zip")
+                .setContent(new BytesArray(DeployDeltaTest.zip(entries)))
+                .setTaskId(name)
+                .execute().actionGet();
+        long nanos = System.nanoTime() - t0;
+        assertTrue(response.getNodes()[0].getSuccess());
+        DeployTask task = node("1").injector().getInstance(DeployTaskService.class).get(name);
+        // the extraction time is recorded, and is part of the time of the deploy
+        assertTrue(task.getUnpackTimeInNanos() > 0L);
+        assertTrue(task.getUnpackTimeInNanos() <= nanos);
+        return task;
+    }
+
+    private void assertExtracted(String name) throws IOException {
+        for (int i = 0; i < ENTRIES; i++) {
+            assertArrayEquals(DeployTest.jar(i, 64 * 1024),
+                    Files.readAllBytes(plugins.resolve("deploy/plugins/" + name + "/lib/entry" + i + ".jar")));
+        }
+    }
+
+    private ThreadPoolStats.Stats stats() {
+        for (ThreadPoolStats.Stats stats : node("1").injector().getInstance(ThreadPool.class).stats()) {
+            if (DeployService.UNPACK_THREAD_POOL.equals(stats.getName())) {
+                return stats;
+            }
+        }
+        throw new IllegalStateException("no thread pool " + DeployService.UNPACK_THREAD_POOL);
+    }
+}
@@ -0,0 +1,213 @@
+package org.xbib.elasticsearch;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbib.classloader.ResourceHandle;
+import org.xbib.classloader.jar.NestedJarResourceLocation;
+import org.xbib.classloader.jar.ZipDirectory;
+import org.xbib.classloader.uri.URIClassLoader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NestedJarTest {
+
+    private File archive;
+
+    @Before
+    public void createArchive() throws IOException {
+        archive = File.createTempFile("bundle-", ".zip");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("plugin-descriptor.properties"));
+            zip.write("classname=a.B\n".getBytes(StandardCharsets.UTF_8));
+            byte[] stored = jar("stored.txt", "stored");
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            ZipEntry entry = new ZipEntry("lib/stored.jar");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stored.length);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            zip.write(stored);
+            zip.putNextEntry(new ZipEntry("lib/deflated.jar"));
+            zip.write(jar("deflated.txt", "deflated"));
+        }
+        Files.write(archive.toPath(), out.toByteArray());
+    }
+
+    @After
+    public void deleteArchive() throws IOException {
+        Files.deleteIfExists(archive.toPath());
+    }
+
+    @Test
+    public void testStoredAndDeflatedJars() throws Exception {
+        // both jars share the directory of the archive
+        ZipDirectory directory = ZipDirectory.map(archive);
+        for (String name : new String[]{"stored", "deflated"}) {
+            NestedJarResourceLocation location = new NestedJarResourceLocation(codeSource(name).toURL(),
+                    directory, "lib/" + name + ".jar");
+            ResourceHandle handle = location.getResourceHandle(name + ".txt");
+            assertNotNull(name, handle);
+            assertEquals(name.length(), handle.getContentLength());
+            assertEquals(name, read(handle.getInputStream()));
+            assertEquals(name, read(handle.getUrl().openStream()));
+            assertEquals(codeSource(name).toURL(), handle.getCodeSourceUrl());
+            assertEquals(name, location.getManifest().getMainAttributes().getValue("Implementation-Title"));
+            assertNull(location.getResourceHandle("missing.txt"));
+        }
+    }
+
+    @Test
+    public void testMissingJar() throws Exception {
+        try {
+            new NestedJarResourceLocation(codeSource("missing").toURL(), ZipDirectory.map(archive),
+                    "lib/missing.jar");
+            fail();
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNoZip() throws Exception {
+        File file = File.createTempFile("nozip-", ".zip");
+        try {
+            Files.write(file.toPath(), "no zip".getBytes(StandardCharsets.UTF_8));
+            ZipDirectory.map(file);
+            fail();
+        } catch (ZipException e) {
+            assertEquals("end of central directory not found", e.getMessage());
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    public void testDeflatedJarIsMappedFromDeletedFile() throws Exception {
+        Path maps = Paths.get("/proc/self/maps");
+        Assume.assumeTrue(Files.isReadable(maps));
+        NestedJarResourceLocation location = new NestedJarResourceLocation(codeSource("deflated").toURL(),
+                ZipDirectory.map(archive), "lib/deflated.jar");
+        // inflated into a file, not into the heap, and the file is gone while the mapping is in use
+        boolean mapped = false;
+        for (String line : Files.readAllLines(maps, StandardCharsets.UTF_8)) {
+            mapped = mapped || (line.contains(File.separator + "nested-") && line.endsWith("(deleted)"));
+        }
+        assertTrue(mapped);
+        assertEquals("deflated", read(location.getResourceHandle("deflated.txt").getInputStream()));
+    }
+
+    @Test
+    public void testZip64IsRejected() throws Exception {
+        // more entries than a zip without zip64 records can count
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (int i = 0; i < 0x10000; i++) {
+                zip.putNextEntry(new ZipEntry("e" + i));
+            }
+        }
+        byte[] big = out.toByteArray();
+        File file = File.createTempFile("zip64-", ".zip");
+        try {
+            Files.write(file.toPath(), big);
+            try {
+                ZipDirectory.map(file);
+                fail();
+            } catch (ZipException e) {
+                assertEquals("zip64 archives are not supported", e.getMessage());
+            }
+            // a zip64 jar stored in a bundle
+            out = new ByteArrayOutputStream();
+            try (ZipOutputStream zip = new ZipOutputStream(out)) {
+                CRC32 crc = new CRC32();
+                crc.update(big);
+                ZipEntry entry = new ZipEntry("lib/big.jar");
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(big.length);
+                entry.setCrc(crc.getValue());
+                zip.putNextEntry(entry);
+                zip.write(big);
+            }
+            Files.write(file.toPath(), out.toByteArray());
+            ZipDirectory.verify(archive);
+            try {
+                ZipDirectory.verify(file);
+                fail();
+            } catch (ZipException e) {
+                assertEquals("lib/big.jar: zip64 archives are not supported", e.getMessage());
+            }
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    public void testClassLoader() throws Exception {
+        try (URIClassLoader classLoader = new URIClassLoader(getClass().getClassLoader())) {
+            classLoader.addURI(codeSource("stored"));
+            // a jar that is not in the archive is skipped
+            classLoader.addURI(codeSource("missing"));
+            classLoader.addURI(codeSource("deflated"));
+            assertEquals("stored", read(classLoader.getResourceAsStream("stored.txt")));
+            assertEquals("deflated", read(classLoader.getResourceAsStream("deflated.txt")));
+            URL url = classLoader.getResource("deflated.txt");
+            assertNotNull(url);
+            assertEquals("deflated", read(url.openStream()));
+            assertNull(classLoader.getResource("missing.txt"));
+        }
+    }
+
+    private URI codeSource(String name) {
+        return URI.create("jar:" + archive.toURI() + "!/lib/" + name + ".jar");
+    }
+
+    private static byte[] jar(String name, String content) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_TITLE, content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JarOutputStream jar = new JarOutputStream(out, manifest)) {
+            jar.putNextEntry(new ZipEntry(name));
+            jar.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream is = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}